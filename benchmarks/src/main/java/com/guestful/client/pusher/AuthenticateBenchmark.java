@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.json.Json;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Channel authentication as done by the application server for each subscription
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthenticateBenchmark {
+
+    private Pusher pusher;
+    private PusherPresence presence;
+
+    @Setup
+    public void setUp() {
+        pusher = new Pusher("42", "278d425bdf160c739803", "7ad3773142a6692b25b8");
+        presence = new PusherPresence("okoMskkfJxo9JcOzF7Bpiw", Json.createObjectBuilder()
+            .add("id", "okoMskkfJxo9JcOzF7Bpiw")
+            .add("name", "Jane Doe")
+            .add("email", "jane.doe@example.com")
+            .add("locale", "en")
+            .add("roles", Json.createArrayBuilder().add("host").add("manager"))
+            .add("restaurant", Json.createObjectBuilder()
+                .add("id", "Dk_0YMqYt8ZszESJoDl0ig")
+                .add("name", "Chez Guestful")
+                .add("timezone", "America/Montreal"))
+            .build());
+    }
+
+    @TearDown
+    public void tearDown() {
+        pusher.close();
+    }
+
+    @Benchmark
+    public PusherAuth privateChannel() {
+        return pusher.authenticate("39345.292710", "private-floor-Dk_0YMqYt8ZszESJoDl0ig");
+    }
+
+    @Benchmark
+    public PusherAuth presenceChannel() {
+        return pusher.authenticate("39345.292710", "presence-restaurant-Dk_0YMqYt8ZszESJoDl0ig", presence);
+    }
+
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end publication of an event through {@link PusherChannel#publish(String, javax.json.JsonStructure)} against a
+ * loopback HTTP stub: serialization, signing, the HTTP round trip and the response handling, with each transport.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublishBenchmark {
+
+    @Param({"urlconnection", "jaxrs"})
+    String transport;
+
+    private LoopbackServer server;
+    private Client client;
+    private Pusher pusher;
+    private PusherChannel channel;
+    private JsonObject data;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new LoopbackServer();
+        if ("jaxrs".equals(transport)) {
+            // the client is not closed by Pusher
+            client = ClientBuilder.newClient();
+            pusher = new Pusher(client, server.getUrl());
+        } else {
+            pusher = new Pusher(server.getUrl());
+        }
+        channel = pusher.getChannel("presence-restaurant-Dk_0YMqYt8ZszESJoDl0ig");
+        data = Json.createObjectBuilder()
+            .add("reservationId", "okoMskkfJxo9JcOzF7Bpiw")
+            .add("status", "SEATED")
+            .add("partySize", 4)
+            .add("tables", Json.createArrayBuilder().add("12").add("14"))
+            .build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pusher.close();
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+        server.close();
+    }
+
+    @Benchmark
+    public void publish() {
+        channel.publish("reservation-updated", data);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void publishConcurrently() {
+        channel.publish("reservation-updated", data);
+    }
+
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request signing: the signed URL, the body MD5 and the string to sign, for a growing number of query parameters, and the
+ * signature of a presence authentication compared with a {@link Mac} created for each signature
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignatureBenchmark {
+
+    private static final String SECRET = "7ad3773142a6692b25b8";
+    private static final String AUTHENTICATION = "39345.292710:presence-restaurant-Dk_0YMqYt8ZszESJoDl0ig:{\"user_id\":\"okoMskkfJxo9JcOzF7Bpiw\",\"user_info\":{\"id\":\"okoMskkfJxo9JcOzF7Bpiw\",\"locale\":\"en\"}}";
+    private static final char[] BASE16 = "0123456789abcdef".toCharArray();
+
+    @Param({"0", "2", "8"})
+    int queryParamCount;
+
+    private SignatureUtil signatureUtil;
+    private RequestBody body;
+    private MultivaluedMap<String, Object> queryParams;
+    private MultivaluedMap<String, Object> signedParams;
+
+    @Setup
+    public void setUp() {
+        signatureUtil = new SignatureUtil(SECRET);
+        JsonObjectBuilder data = Json.createObjectBuilder()
+            .add("reservationId", "Dk_0YMqYt8ZszESJoDl0ig")
+            .add("status", "SEATED")
+            .add("partySize", 4)
+            .add("tables", Json.createArrayBuilder().add("12").add("14"));
+        body = RequestBody.event(Arrays.asList("presence-restaurant-Dk_0YMqYt8ZszESJoDl0ig", "private-floor-42"), "reservation-updated", data.build().toString());
+        queryParams = new MultivaluedHashMap<>();
+        for (int i = 0; i < queryParamCount; i++) {
+            queryParams.putSingle("param_" + i, "value_" + i);
+        }
+        signedParams = new MultivaluedHashMap<>(queryParams);
+        signedParams.putSingle("auth_key", "278d425bdf160c739803");
+        signedParams.putSingle("auth_version", "1.0");
+        signedParams.putSingle("auth_timestamp", "1353088179");
+        signedParams.putSingle("body_md5", SignatureUtil.bodyMd5(body));
+    }
+
+    @Benchmark
+    public String signUrl() {
+        return signatureUtil.signUrl(HttpMethod.POST, "https://api.pusherapp.com", "/apps/42/events", body, queryParams, "278d425bdf160c739803");
+    }
+
+    @Benchmark
+    public String bodyMd5() {
+        return SignatureUtil.bodyMd5(body);
+    }
+
+    @Benchmark
+    public String buildSignatureString() {
+        return SignatureUtil.buildSignatureString(HttpMethod.POST, "/apps/42/events", signedParams);
+    }
+
+    @Benchmark
+    public String sign() {
+        return signatureUtil.sign(AUTHENTICATION);
+    }
+
+    /**
+     * The signature as computed before the signing engine
+     */
+    @Benchmark
+    public String signWithMacPerCall() throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(SECRET.getBytes(StandardCharsets.UTF_8), "SHA256"));
+        byte[] digest = mac.doFinal(AUTHENTICATION.getBytes(StandardCharsets.UTF_8));
+        char[] hexChars = new char[digest.length * 2];
+        for (int j = 0; j < digest.length; j++) {
+            int v = digest[j] & 0xFF;
+            hexChars[j * 2] = BASE16[v >>> 4];
+            hexChars[j * 2 + 1] = BASE16[v & 0x0F];
+        }
+        return new String(hexChars);
+    }
+
+}
@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import javax.json.Json;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Size accounting of event data and splitting of oversized data in chunk events.
+ * <p>
+ * A chunk is published as the event <code>chunked-{event name}</code> with the data
+ * <code>{"id":"...","index":0,"chunk":"...","final":false}</code>: all the chunks of an event share the same <code>id</code>,
+ * are numbered from 0 and the last one has <code>final</code> set to true. The original data is the concatenation of the
+ * <code>chunk</code> strings in <code>index</code> order.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class EventChunks {
+
+    static final String PREFIX = "chunked-";
+
+    // {"id":"<16 hex>","index":<10 digits>,"chunk":"","final":false} escaped, with some margin
+    private static final int ENVELOPE_SIZE = 96;
+
+    private EventChunks() {
+    }
+
+    /**
+     * @return the size of the data once escaped in a JSON string and encoded in UTF-8
+     */
+    static int size(String data) {
+        int size = 0;
+        for (int i = 0, n = data.length(); i < n; i++) {
+            char c = data.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(data.charAt(i + 1))) {
+                size += 4;
+                i++;
+            } else {
+                size += size(c);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the size of UTF-8 encoded data once escaped in a JSON string
+     */
+    static int size(byte[] data) {
+        int size = 0;
+        for (byte b : data) {
+            // the bytes of a multi-byte sequence are kept as is
+            size += b < 0 ? 1 : size((char) b);
+        }
+        return size;
+    }
+
+    /**
+     * @return the size of a char, other than a surrogate pair, escaped in a JSON string and encoded in UTF-8
+     */
+    private static int size(char c) {
+        if (c == '"' || c == '\\' || c == '\b' || c == '\f' || c == '\n' || c == '\r' || c == '\t') {
+            return 2;
+        } else if (c < 0x20) {
+            return 6;
+        } else if (c < 0x80) {
+            return 1;
+        } else if (c < 0x800) {
+            return 2;
+        }
+        return 3;
+    }
+
+    /**
+     * @return the size of a char of a chunk, which is escaped once in the chunk and once more with the chunk in the event data
+     */
+    private static int chunkSize(char c) {
+        if (c == '"' || c == '\\') {
+            return 4;
+        } else if (c == '\b' || c == '\f' || c == '\n' || c == '\r' || c == '\t') {
+            return 3;
+        } else if (c < 0x20) {
+            return 7;
+        }
+        return size(c);
+    }
+
+    /**
+     * @return true if the escaped data is larger than the given size, counting only when it could be
+     */
+    static boolean exceeds(String data, int maxSize) {
+        // a char is at most 6 bytes once escaped
+        return data.length() > maxSize / 6 && size(data) > maxSize;
+    }
+
+    /**
+     * Split the data in chunk events whose escaped data is at most <code>maxSize</code> bytes
+     */
+    static List<String> split(String data, int maxSize) {
+        final int budget = maxSize - ENVELOPE_SIZE;
+        if (budget < 6) {
+            throw new IllegalArgumentException("Chunk size too small: " + maxSize);
+        }
+        final String id = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+        final List<String> pieces = new ArrayList<>();
+        int start = 0;
+        int size = 0;
+        for (int i = 0, n = data.length(); i < n; ) {
+            char c = data.charAt(i);
+            int width = 1;
+            int encoded;
+            if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(data.charAt(i + 1))) {
+                // never split a surrogate pair
+                encoded = 4;
+                width = 2;
+            } else {
+                encoded = chunkSize(c);
+            }
+            if (size + encoded > budget) {
+                pieces.add(data.substring(start, i));
+                start = i;
+                size = 0;
+            }
+            size += encoded;
+            i += width;
+        }
+        pieces.add(data.substring(start));
+        final List<String> chunks = new ArrayList<>(pieces.size());
+        for (int i = 0; i < pieces.size(); i++) {
+            chunks.add(Json.createObjectBuilder()
+                .add("id", id)
+                .add("index", i)
+                .add("chunk", pieces.get(i))
+                .add("final", i == pieces.size() - 1)
+                .build()
+                .toString());
+        }
+        return chunks;
+    }
+
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounds the number of asynchronous requests waiting for a response, applying a {@link PusherBackpressure} policy when full.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+class InFlightLimiter {
+
+    private final int max;
+    private final PusherBackpressure policy;
+    private final Semaphore permits;
+    private final Deque<Ticket> tickets = new ConcurrentLinkedDeque<>();
+
+    InFlightLimiter(int max, PusherBackpressure policy) {
+        this.max = max;
+        this.policy = policy;
+        this.permits = new Semaphore(max);
+    }
+
+    int getMax() {
+        return max;
+    }
+
+    PusherBackpressure getPolicy() {
+        return policy;
+    }
+
+    Ticket acquire(CompletableFuture<?> result) throws RejectedExecutionException {
+        switch (policy) {
+            case BLOCK:
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted while waiting for one of the " + max + " in-flight Pusher requests to complete", e);
+                }
+                break;
+            case FAIL_FAST:
+                if (!permits.tryAcquire()) {
+                    throw new RejectedExecutionException("Too many in-flight Pusher requests (" + max + ")");
+                }
+                break;
+            case DROP_OLDEST:
+                while (!permits.tryAcquire()) {
+                    Ticket oldest = tickets.pollFirst();
+                    if (oldest != null) {
+                        oldest.drop();
+                    } else {
+                        // a permit is held by a request not registered yet
+                        Thread.yield();
+                    }
+                }
+                break;
+            default:
+                throw new AssertionError(policy);
+        }
+        Ticket ticket = new Ticket(result);
+        tickets.addLast(ticket);
+        return ticket;
+    }
+
+    final class Ticket {
+
+        private final CompletableFuture<?> result;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile Future<?> future;
+
+        private Ticket(CompletableFuture<?> result) {
+            this.result = result;
+        }
+
+        void attach(Future<?> future) {
+            this.future = future;
+            if (released.get() && result.isCompletedExceptionally()) {
+                // dropped before the request was attached
+                future.cancel(true);
+            }
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                tickets.remove(this);
+                permits.release();
+            }
+        }
+
+        private void drop() {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+                result.completeExceptionally(new RejectedExecutionException("Dropped to make room for a newer Pusher request"));
+                Future<?> f = future;
+                if (f != null) {
+                    f.cancel(true);
+                }
+            }
+        }
+    }
+
+}
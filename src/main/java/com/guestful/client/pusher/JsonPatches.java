@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import java.util.Map;
+
+/**
+ * Computes <a href="https://tools.ietf.org/html/rfc6902">RFC 6902</a> JSON Patch documents between two JSON values.
+ * <p>
+ * Object members are compared by name. Array elements are compared by index: elements past the end of the shorter array
+ * are removed from the end or appended, so moves and insertions in the middle of an array are encoded as replacements.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class JsonPatches {
+
+    private JsonPatches() {
+    }
+
+    /**
+     * @return the operations turning <code>from</code> into <code>to</code>, empty if they are equal
+     */
+    static JsonArray diff(JsonValue from, JsonValue to) {
+        final JsonArrayBuilder operations = Json.createArrayBuilder();
+        diff("", from, to, operations);
+        return operations.build();
+    }
+
+    private static void diff(String path, JsonValue from, JsonValue to, JsonArrayBuilder operations) {
+        if (from.equals(to)) {
+            return;
+        }
+        if (from.getValueType() == JsonValue.ValueType.OBJECT && to.getValueType() == JsonValue.ValueType.OBJECT) {
+            final JsonObject source = (JsonObject) from;
+            final JsonObject target = (JsonObject) to;
+            for (String name : source.keySet()) {
+                if (!target.containsKey(name)) {
+                    operations.add(operation("remove", path + '/' + escape(name)));
+                }
+            }
+            for (Map.Entry<String, JsonValue> member : target.entrySet()) {
+                final String memberPath = path + '/' + escape(member.getKey());
+                final JsonValue previous = source.get(member.getKey());
+                if (previous == null) {
+                    operations.add(operation("add", memberPath).add("value", member.getValue()));
+                } else {
+                    diff(memberPath, previous, member.getValue(), operations);
+                }
+            }
+        } else if (from.getValueType() == JsonValue.ValueType.ARRAY && to.getValueType() == JsonValue.ValueType.ARRAY) {
+            final JsonArray source = (JsonArray) from;
+            final JsonArray target = (JsonArray) to;
+            final int common = Math.min(source.size(), target.size());
+            for (int i = 0; i < common; i++) {
+                diff(path + '/' + i, source.get(i), target.get(i), operations);
+            }
+            // from the end so that the indexes of the remaining elements do not change
+            for (int i = source.size() - 1; i >= common; i--) {
+                operations.add(operation("remove", path + '/' + i));
+            }
+            for (int i = common; i < target.size(); i++) {
+                operations.add(operation("add", path + "/-").add("value", target.get(i)));
+            }
+        } else {
+            operations.add(operation("replace", path).add("value", to));
+        }
+    }
+
+    private static JsonObjectBuilder operation(String op, String path) {
+        return Json.createObjectBuilder().add("op", op).add("path", path);
+    }
+
+    /**
+     * Escape a member name as a JSON Pointer reference token
+     */
+    static String escape(String name) {
+        if (name.indexOf('~') == -1 && name.indexOf('/') == -1) {
+            return name;
+        }
+        return name.replace("~", "~0").replace("/", "~1");
+    }
+
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import javax.json.stream.JsonParser;
+
+/**
+ * Helpers to read JSON documents with a {@link JsonParser}
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class JsonStreams {
+
+    private JsonStreams() {
+    }
+
+    static void expect(JsonParser parser, JsonParser.Event expected) {
+        JsonParser.Event event = parser.next();
+        if (event != expected) {
+            throw new IllegalStateException("Expected " + expected + " but got " + event);
+        }
+    }
+
+    /**
+     * Skip the value which just started
+     */
+    static void skip(JsonParser parser, JsonParser.Event value) {
+        if (value == JsonParser.Event.START_OBJECT || value == JsonParser.Event.START_ARRAY) {
+            int depth = 1;
+            while (depth > 0) {
+                JsonParser.Event event = parser.next();
+                if (event == JsonParser.Event.START_OBJECT || event == JsonParser.Event.START_ARRAY) {
+                    depth++;
+                } else if (event == JsonParser.Event.END_OBJECT || event == JsonParser.Event.END_ARRAY) {
+                    depth--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Move the parser to the value of a key of the top-level object
+     *
+     * @return the event starting the value, or null if the key is absent
+     */
+    static JsonParser.Event seek(JsonParser parser, String key) {
+        expect(parser, JsonParser.Event.START_OBJECT);
+        while (parser.next() == JsonParser.Event.KEY_NAME) {
+            String name = parser.getString();
+            JsonParser.Event value = parser.next();
+            if (key.equals(name)) {
+                return value;
+            }
+            skip(parser, value);
+        }
+        return null;
+    }
+
+}
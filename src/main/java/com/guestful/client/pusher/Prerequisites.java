@@ -34,7 +34,7 @@ class Prerequisites {
     }
 
     public static void maxLength(final String name, final int max, final List<?> ref) {
-        if (ref.size() > max) throw new IllegalArgumentException("Parameter [" + name + "] must have size < " + max);
+        if (ref.size() > max) throw new IllegalArgumentException("Parameter [" + name + "] must have size <= " + max);
     }
 
     public static void noReservedKeys(final MultivaluedMap<String, Object> params) {
@@ -15,23 +15,68 @@
  */
 package com.guestful.client.pusher;
 
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonReader;
 import javax.json.JsonStructure;
-import javax.ws.rs.client.*;
-import javax.ws.rs.core.MediaType;
+import javax.json.stream.JsonParser;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MultivaluedHashMap;
 import javax.ws.rs.core.MultivaluedMap;
-import javax.ws.rs.core.Response;
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 /**
+ * Requests are sent through a {@link PusherTransport}: {@link PusherUrlConnectionTransport} by default, or
+ * {@link PusherJaxRsTransport} when built from a JAX-RS {@link Client}.
+ *
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
  */
-public class Pusher {
+public class Pusher implements Closeable {
+
+    /**
+     * Maximum number of channels Pusher accepts for a single event
+     */
+    public static final int MAX_CHANNELS_PER_EVENT = 100;
+
+    /**
+     * Maximum size in bytes of the UTF-8 encoded data of an event accepted by Pusher
+     */
+    public static final int MAX_EVENT_DATA_SIZE = 10 * 1024;
+
+    /**
+     * Prefix of the channel every connection of an authenticated user is subscribed to
+     */
+    public static final String SERVER_TO_USER_PREFIX = "#server-to-user-";
 
     private static final Logger LOGGER = Logger.getLogger(Pusher.class.getName());
     private static final Pattern URL_PATTERN = Pattern.compile("(https?)://(.+):(.+)@(.+:?.*)/apps/(.+)");
@@ -39,39 +84,69 @@ public class Pusher {
     private final String appId;
     private final String key;
     private final String secret;
-    private final WebTarget target;
-    private final Client client;
+    private final String baseUrl;
+    private final String basePath;
+    private final PusherTransport transport;
+    private final SignatureUtil signatureUtil;
 
     private boolean enabled = true;
+    private boolean chunking;
+    private InFlightLimiter inFlightLimiter;
+    private PusherRetryPolicy retryPolicy = PusherRetryPolicy.NONE;
+    private PusherCircuitBreaker circuitBreaker;
+    private long requestTimeoutNanos;
+    private long hedgeDelayNanos;
+    private PusherSpool spool;
+    private PusherMemberCache memberCache;
+    private PusherPresenceCache presenceCache;
+    private PusherOccupancy occupancy;
+    private PusherMetrics metrics;
+    private PusherRateLimiter rateLimiter;
+    // only created by getClient() when the transport is not JAX-RS
+    private Client ownClient;
 
     public Pusher(String uri) {
-        this(ClientBuilder.newClient(), uri);
+        this(new PusherUrlConnectionTransport(), uri);
     }
 
     public Pusher(String appId, String apiKey, String apiSecret) {
-        this(ClientBuilder.newClient(), appId, apiKey, apiSecret);
+        this(new PusherUrlConnectionTransport(), appId, apiKey, apiSecret);
     }
 
     public Pusher(Client client, String url) {
+        this(new PusherJaxRsTransport(client), url);
+    }
+
+    public Pusher(Client client, String appId, String apiKey, String apiSecret) {
+        this(new PusherJaxRsTransport(client), appId, apiKey, apiSecret);
+    }
+
+    public Pusher(PusherTransport transport, String url) {
+        Prerequisites.nonNull("transport", transport);
         Prerequisites.nonNull("url", url);
-        this.client = client;
+        this.transport = transport;
         final Matcher m = URL_PATTERN.matcher(url);
         if (m.matches()) {
             this.key = m.group(2);
             this.secret = m.group(3);
             this.appId = m.group(5);
-            this.target = buildWebTarget(m.group(1) + "://" + m.group(4));
+            this.baseUrl = m.group(1) + "://" + m.group(4);
         } else {
             throw new IllegalArgumentException("URL '" + url + "' does not match pattern '<scheme>://<key>:<secret>@<host>[:<port>]/apps/<appId>'");
         }
+        this.basePath = "/apps/" + appId + "/";
+        this.signatureUtil = new SignatureUtil(secret);
     }
 
-    public Pusher(Client client, String appId, String apiKey, String apiSecret) {
+    public Pusher(PusherTransport transport, String appId, String apiKey, String apiSecret) {
+        Prerequisites.nonNull("transport", transport);
         this.appId = appId;
         this.key = apiKey;
         this.secret = apiSecret;
-        this.client = client;
-        this.target = buildWebTarget("http://api.pusherapp.com");
+        this.transport = transport;
+        this.baseUrl = "http://api.pusherapp.com";
+        this.basePath = "/apps/" + appId + "/";
+        this.signatureUtil = new SignatureUtil(apiSecret);
     }
 
     public String getAppId() {
@@ -86,8 +161,55 @@ public class Pusher {
         return secret;
     }
 
+    /**
+     * @return the JAX-RS client used to send the requests. With another transport, a client is created on first call and
+     * closed with this instance, but requests are not sent with it.
+     * @deprecated requests are sent with {@link #getTransport()}
+     */
+    @Deprecated
     public Client getClient() {
-        return client;
+        if (transport instanceof PusherJaxRsTransport) {
+            return ((PusherJaxRsTransport) transport).getClient();
+        }
+        synchronized (this) {
+            if (ownClient == null) {
+                ownClient = ClientBuilder.newClient();
+            }
+            return ownClient;
+        }
+    }
+
+    /**
+     * @deprecated requests are sent with {@link #getTransport()}: the returned target is not used by this instance
+     */
+    @Deprecated
+    protected WebTarget buildWebTarget(String base) {
+        return getClient().target(base + "/apps/" + getAppId());
+    }
+
+    public PusherTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Close the transport and the rate limiter, if any. A JAX-RS client given to a constructor is left open. The spool,
+     * if any, must be closed separately.
+     */
+    @Override
+    public void close() {
+        final PusherRateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            limiter.close();
+        }
+        transport.close();
+        final Client client;
+        synchronized (this) {
+            client = ownClient;
+            ownClient = null;
+        }
+        if (client != null) {
+            client.close();
+        }
     }
 
     public boolean isEnabled() {
@@ -98,14 +220,262 @@ public class Pusher {
         this.enabled = enabled;
     }
 
-    protected WebTarget buildWebTarget(String base) {
-        return getClient().target(base + "/apps/" + getAppId());
+    /**
+     * @return the maximum number of concurrent asynchronous requests, or <code>-1</code> if unbounded
+     */
+    public int getMaxInFlight() {
+        return inFlightLimiter == null ? -1 : inFlightLimiter.getMax();
+    }
+
+    public PusherBackpressure getBackpressure() {
+        return inFlightLimiter == null ? null : inFlightLimiter.getPolicy();
+    }
+
+    /**
+     * Bound the number of asynchronous requests waiting for a response from Pusher.
+     *
+     * @param maxInFlight  the maximum number of concurrent asynchronous requests
+     * @param backpressure what to do when a request is submitted while <code>maxInFlight</code> requests are pending
+     */
+    public void setMaxInFlight(int maxInFlight, PusherBackpressure backpressure) {
+        Prerequisites.nonNull("backpressure", backpressure);
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Parameter [maxInFlight] must be positive");
+        }
+        this.inFlightLimiter = new InFlightLimiter(maxInFlight, backpressure);
+    }
+
+    public PusherRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Retry policy applied to 5xx, 429 and connection failures. Each attempt is signed again. Defaults to {@link PusherRetryPolicy#NONE}.
+     */
+    public void setRetryPolicy(PusherRetryPolicy retryPolicy) {
+        Prerequisites.nonNull("retryPolicy", retryPolicy);
+        this.retryPolicy = retryPolicy;
+    }
+
+    public PusherCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Circuit breaker failing requests fast while Pusher is unhealthy, or <code>null</code> to disable it (the default)
+     */
+    public void setCircuitBreaker(PusherCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public long getRequestTimeout(TimeUnit unit) {
+        return unit.convert(requestTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Default deadline of a request, retries included. A request still pending at its deadline fails with a
+     * {@link ProcessingException} caused by a {@link TimeoutException}. <code>0</code> (the default) means no deadline.
+     */
+    public void setRequestTimeout(long timeout, TimeUnit unit) {
+        Prerequisites.nonNull("unit", unit);
+        this.requestTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    public long getHedgeDelay(TimeUnit unit) {
+        return unit.convert(hedgeDelayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * When positive, a <code>GET</code> request without response after this delay is sent a second time and the first response wins.
+     * Events are never hedged since publishing is not idempotent. <code>0</code> (the default) disables hedging.
+     */
+    public void setHedgeDelay(long delay, TimeUnit unit) {
+        Prerequisites.nonNull("unit", unit);
+        this.hedgeDelayNanos = unit.toNanos(delay);
+    }
+
+    public boolean isChunking() {
+        return chunking;
+    }
+
+    /**
+     * When enabled, events whose data exceeds {@link #MAX_EVENT_DATA_SIZE} are split and published as a sequence of
+     * <code>chunked-{event name}</code> events that browsers reassemble, as described in the README. When disabled (the default),
+     * publishing such an event fails with an {@link IllegalArgumentException} before any request is sent.
+     */
+    public void setChunking(boolean chunking) {
+        this.chunking = chunking;
+    }
+
+    /**
+     * @return the chunks the data must be sent in, or <code>null</code> if it fits in one event
+     * @throws IllegalArgumentException if the data is too large and chunking is disabled
+     */
+    List<String> chunk(String data) {
+        if (!EventChunks.exceeds(data, MAX_EVENT_DATA_SIZE)) {
+            return null;
+        }
+        if (!chunking) {
+            throw new IllegalArgumentException("Event data of " + EventChunks.size(data) + " bytes exceeds the limit of " + MAX_EVENT_DATA_SIZE + " bytes");
+        }
+        return EventChunks.split(data, MAX_EVENT_DATA_SIZE);
+    }
+
+    public PusherRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Limit the rate of the requests sent to this application, or <code>null</code> to remove the limit (the default).
+     * A rate limiter must not be shared between applications: it belongs to this instance and is closed with it.
+     */
+    public void setRateLimiter(PusherRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    SignatureUtil getSignatureUtil() {
+        return signatureUtil;
     }
 
     public PusherChannel getChannel(String name) {
         return new PusherChannel(this, name);
     }
 
+    /**
+     * Publish an event on any number of channels.
+     * <p>
+     * Channels are split in groups of {@link #MAX_CHANNELS_PER_EVENT} which are sent in parallel as asynchronous requests.
+     * A failed group does not prevent the others from being sent: the returned result holds the outcome for each channel.
+     */
+    public PusherPublishResult publish(final Collection<String> channels, final String eventName, final JsonStructure eventData) {
+        return publishAsync(channels, eventName, eventData).join();
+    }
+
+    /**
+     * Asynchronous version of {@link #publish(Collection, String, JsonStructure)}. The returned future never completes exceptionally:
+     * failures are reported by channel in the result.
+     */
+    public CompletableFuture<PusherPublishResult> publishAsync(final Collection<String> channels, final String eventName, final JsonStructure eventData) {
+        return publishAsync(channels, eventName, eventData, PusherPriority.NORMAL);
+    }
+
+    /**
+     * @param priority the lane of the requests in the {@link PusherRateLimiter}, if any
+     * @see #publishAsync(Collection, String, JsonStructure)
+     */
+    public CompletableFuture<PusherPublishResult> publishAsync(final Collection<String> channels, final String eventName, final JsonStructure eventData, final PusherPriority priority) {
+        Prerequisites.nonNull("priority", priority);
+        Prerequisites.nonNull("channels", channels);
+        Prerequisites.nonNull("eventName", eventName);
+        Prerequisites.nonNull("data", eventData);
+        final String data = eventData.toString();
+        final List<String> names = new ArrayList<>(new LinkedHashSet<>(channels));
+        final List<List<String>> chunks = new ArrayList<>();
+        for (int i = 0; i < names.size(); i += MAX_CHANNELS_PER_EVENT) {
+            chunks.add(names.subList(i, Math.min(i + MAX_CHANNELS_PER_EVENT, names.size())));
+        }
+        final List<CompletableFuture<Void>> futures = new ArrayList<>(chunks.size());
+        for (List<String> chunk : chunks) {
+            CompletableFuture<Void> future;
+            try {
+                future = publishAsync(chunk, eventName, data, priority);
+            } catch (RuntimeException e) {
+                future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+            }
+            futures.add(future);
+        }
+        return CompletableFuture.allOf(futures.stream().map(f -> f.handle((v, e) -> null)).toArray(CompletableFuture[]::new)).thenApply(v -> {
+            final List<String> published = new ArrayList<>(names.size());
+            final Map<String, RuntimeException> failures = new LinkedHashMap<>();
+            for (int i = 0; i < chunks.size(); i++) {
+                try {
+                    futures.get(i).join();
+                    published.addAll(chunks.get(i));
+                } catch (CompletionException e) {
+                    RuntimeException cause = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+                    for (String channel : chunks.get(i)) {
+                        failures.put(channel, cause);
+                    }
+                }
+            }
+            return new PusherPublishResult(published, failures);
+        });
+    }
+
+    void publish(final List<String> channels, final String eventName, final String data) throws PusherException {
+        publish(channels, eventName, data, requestTimeoutNanos);
+    }
+
+    void publish(final List<String> allChannels, final String eventName, final String data, long timeoutNanos) throws PusherException {
+        Prerequisites.maxLength("channels", MAX_CHANNELS_PER_EVENT, allChannels);
+        final List<String> chunks = chunk(data);
+        final List<String> channels = occupied(allChannels);
+        if (channels.isEmpty()) {
+            return;
+        }
+        reportPublish(channels, eventName, data);
+        if (chunks == null) {
+            request(HttpMethod.POST, "events", RequestBody.event(channels, eventName, data), new MultivaluedHashMap<>(), timeoutNanos).close();
+        } else {
+            final long deadline = System.nanoTime() + timeoutNanos;
+            for (String chunk : chunks) {
+                long remaining = timeoutNanos == 0 ? 0 : Math.max(1, deadline - System.nanoTime());
+                request(HttpMethod.POST, "events", RequestBody.event(channels, EventChunks.PREFIX + eventName, chunk), new MultivaluedHashMap<>(), remaining).close();
+            }
+        }
+    }
+
+    /**
+     * Publish data already encoded in UTF-8 without decoding it. Oversized data is decoded to be split in chunks.
+     */
+    void publish(final List<String> allChannels, final String eventName, final byte[] data) throws PusherException {
+        final int size = EventChunks.size(data);
+        if (size > MAX_EVENT_DATA_SIZE) {
+            publish(allChannels, eventName, new String(data, StandardCharsets.UTF_8));
+            return;
+        }
+        Prerequisites.maxLength("channels", MAX_CHANNELS_PER_EVENT, allChannels);
+        final List<String> channels = occupied(allChannels);
+        if (channels.isEmpty()) {
+            return;
+        }
+        reportPublish(channels, eventName, size);
+        request(HttpMethod.POST, "events", RequestBody.event(channels, eventName, data), new MultivaluedHashMap<>(), requestTimeoutNanos).close();
+    }
+
+    /**
+     * The chunks of an oversized event are sent one after the other, in order
+     */
+    CompletableFuture<Void> publishAsync(final List<String> channels, final String eventName, final String data) {
+        return publishAsync(channels, eventName, data, PusherPriority.NORMAL);
+    }
+
+    CompletableFuture<Void> publishAsync(final List<String> allChannels, final String eventName, final String data, final PusherPriority priority) {
+        Prerequisites.maxLength("channels", MAX_CHANNELS_PER_EVENT, allChannels);
+        final List<String> chunks = chunk(data);
+        final List<String> channels = occupied(allChannels);
+        if (channels.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        reportPublish(channels, eventName, data);
+        if (chunks == null) {
+            return publishEventAsync(channels, eventName, data, priority);
+        }
+        CompletableFuture<Void> future = CompletableFuture.completedFuture(null);
+        for (final String chunk : chunks) {
+            future = future.thenCompose(v -> publishEventAsync(channels, EventChunks.PREFIX + eventName, chunk, priority));
+        }
+        return future;
+    }
+
+    private CompletableFuture<Void> publishEventAsync(final List<String> channels, final String eventName, final String data, final PusherPriority priority) {
+        return requestAsync(HttpMethod.POST, "events", RequestBody.event(channels, eventName, data), new MultivaluedHashMap<>(), requestTimeoutNanos, true, priority).thenApply(r -> {
+            r.close();
+            return null;
+        });
+    }
+
     /**
      * Generate authentication response to authorise a user on a presence channel
      * <p>
@@ -121,8 +491,13 @@ public class Pusher {
         if (!channel.startsWith("presence-")) {
             throw new IllegalArgumentException("Authentication is only applicable to private and presence channels");
         }
-        final String channelData = user.toJson().toString();
-        final String signature = SignatureUtil.sign(socketId + ":" + channel + ":" + channelData, secret);
+        final PusherMetrics metrics = this.metrics;
+        final long start = metrics == null ? 0 : System.nanoTime();
+        final String channelData = channelData(user);
+        final String signature = signatureUtil.sign(socketId + ":" + channel + ":" + channelData);
+        if (metrics != null) {
+            reportAuthentication(metrics, channel, start);
+        }
         return new PusherAuth(key, signature, channelData);
     }
 
@@ -144,35 +519,653 @@ public class Pusher {
         if (!channel.startsWith("private-")) {
             throw new IllegalArgumentException("Authentication is only applicable to private and presence channels");
         }
-        final String signature = SignatureUtil.sign(socketId + ":" + channel, secret);
+        final PusherMetrics metrics = this.metrics;
+        final long start = metrics == null ? 0 : System.nanoTime();
+        final String signature = signatureUtil.sign(socketId + ":" + channel);
+        if (metrics != null) {
+            reportAuthentication(metrics, channel, start);
+        }
         return new PusherAuth(key, signature);
     }
 
-    Response request(String method, String path, JsonStructure body) throws PusherException {
-        return request(method, path, body, new MultivaluedHashMap<>());
+    /**
+     * Generate the response of the user authentication endpoint, signing in the user of a connection so that it can
+     * receive the events sent with {@link #sendToUser(String, String, JsonStructure)}
+     *
+     * @param socketId the socket id of the connection to authenticate
+     * @param user     the user, whose attributes are sent as <code>user_info</code>
+     */
+    public PusherUserAuth authenticateUser(final String socketId, final PusherPresence user) {
+        Prerequisites.nonNull("socketId", socketId);
+        Prerequisites.nonNull("user", user);
+        Prerequisites.nonNull("user.id", user.getId());
+        final PusherMetrics metrics = this.metrics;
+        final long start = metrics == null ? 0 : System.nanoTime();
+        final String userData = Json.createObjectBuilder()
+            .add("id", user.getId())
+            .add("user_info", user.getAttributes())
+            .build()
+            .toString();
+        final String signature = signatureUtil.sign(socketId + "::user::" + userData);
+        if (metrics != null) {
+            reportAuthentication(metrics, SERVER_TO_USER_PREFIX + user.getId(), start);
+        }
+        return new PusherUserAuth(key, signature, userData);
+    }
+
+    /**
+     * Send an event to every connection of an authenticated user
+     *
+     * @see #authenticateUser(String, PusherPresence)
+     */
+    public void sendToUser(final String userId, final String eventName, final JsonStructure eventData) throws PusherException {
+        Prerequisites.nonNull("userId", userId);
+        getChannel(SERVER_TO_USER_PREFIX + userId).publish(eventName, eventData);
+    }
+
+    /**
+     * Send an event to every connection of several authenticated users. Up to {@link #MAX_CHANNELS_PER_EVENT} users are
+     * reached by each request.
+     *
+     * @return the outcome for each user, keyed by the name of its <code>#server-to-user-{id}</code> channel
+     * @see #publish(Collection, String, JsonStructure)
+     */
+    public PusherPublishResult sendToUsers(final Collection<String> userIds, final String eventName, final JsonStructure eventData) {
+        return sendToUsersAsync(userIds, eventName, eventData).join();
+    }
+
+    /**
+     * Asynchronous version of {@link #sendToUsers(Collection, String, JsonStructure)}
+     */
+    public CompletableFuture<PusherPublishResult> sendToUsersAsync(final Collection<String> userIds, final String eventName, final JsonStructure eventData) {
+        Prerequisites.nonNull("userIds", userIds);
+        final List<String> channels = new ArrayList<>(userIds.size());
+        for (final String userId : userIds) {
+            Prerequisites.nonNull("userId", userId);
+            channels.add(SERVER_TO_USER_PREFIX + userId);
+        }
+        return publishAsync(channels, eventName, eventData);
+    }
+
+    /**
+     * Close all the connections of a user, i.e. when its session is revoked
+     */
+    public void terminateUserConnections(final String userId) throws PusherException {
+        await(terminateUserConnectionsAsync(userId));
+    }
+
+    public CompletableFuture<Void> terminateUserConnectionsAsync(final String userId) {
+        Prerequisites.nonNull("userId", userId);
+        return requestAsync(HttpMethod.POST, "users/" + SignatureUtil.encodePathSegment(userId) + "/terminate_connections", RequestBody.of(Json.createObjectBuilder().build()), new MultivaluedHashMap<>()).thenApply(r -> {
+            r.close();
+            return null;
+        });
+    }
+
+    /**
+     * Generate the authentication responses of a socket subscribing to several private and presence channels at once,
+     * i.e. for a batching authorizer. All the channels are validated before any signature is computed.
+     *
+     * @param socketId the socket id of the connection to authenticate
+     * @param channels the private and presence channels to authorise
+     * @param user     the member joining the presence channels, or <code>null</code> if there are none
+     * @return the authentication responses by channel name, in the order of the given channels
+     * @see PusherAuth#toJson(Map)
+     */
+    public Map<String, PusherAuth> authenticate(final String socketId, final Collection<String> channels, final PusherPresence user) {
+        Prerequisites.nonNull("socketId", socketId);
+        Prerequisites.nonNull("channels", channels);
+        boolean presence = false;
+        List<String> invalid = null;
+        for (final String channel : channels) {
+            if (channel != null && channel.startsWith("presence-")) {
+                presence = true;
+            } else if (channel == null || !channel.startsWith("private-")) {
+                if (invalid == null) {
+                    invalid = new ArrayList<>();
+                }
+                invalid.add(channel);
+            }
+        }
+        if (invalid != null) {
+            throw new IllegalArgumentException("Authentication is only applicable to private and presence channels: " + invalid);
+        }
+        if (presence && user == null) {
+            throw new IllegalArgumentException("Parameter [user] is required to authenticate for presence channels");
+        }
+        final PusherMetrics metrics = this.metrics;
+        final String channelData = presence ? channelData(user) : null;
+        final Map<String, PusherAuth> auths = new LinkedHashMap<>();
+        // the string to sign of each channel is appended to the socket id
+        final StringBuilder sb = new StringBuilder(socketId).append(':');
+        final int prefix = sb.length();
+        for (final String channel : channels) {
+            final long start = metrics == null ? 0 : System.nanoTime();
+            sb.setLength(prefix);
+            sb.append(channel);
+            final boolean member = channel.startsWith("presence-");
+            if (member) {
+                sb.append(':').append(channelData);
+            }
+            final String signature = signatureUtil.sign(sb.toString());
+            auths.put(channel, member ? new PusherAuth(key, signature, channelData) : new PusherAuth(key, signature));
+            if (metrics != null) {
+                reportAuthentication(metrics, channel, start);
+            }
+        }
+        return auths;
+    }
+
+    public PusherMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Install a listener notified of every request attempt and authentication, or <code>null</code> to remove it
+     *
+     * @see PusherMetricsRecorder
+     */
+    public void setMetrics(PusherMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public PusherSpool getSpool() {
+        return spool;
+    }
+
+    /**
+     * Spool the events which cannot be sent, and replay them in the background once Pusher is reachable.
+     * The spool is used by a single client and must be closed by the application.
+     */
+    public void setSpool(PusherSpool spool) {
+        if (spool != null) {
+            spool.start(this);
+        }
+        this.spool = spool;
+    }
+
+    public PusherMemberCache getMemberCache() {
+        return memberCache;
+    }
+
+    /**
+     * Cache used by {@link PusherChannel#getMembers()}, or <code>null</code> to always query Pusher (the default)
+     */
+    public void setMemberCache(PusherMemberCache memberCache) {
+        this.memberCache = memberCache;
+    }
+
+    public PusherPresenceCache getPresenceCache() {
+        return presenceCache;
+    }
+
+    /**
+     * Cache of the <code>channel_data</code> of presence channel members, or <code>null</code> to serialize it on each
+     * authentication (the default)
+     */
+    public void setPresenceCache(PusherPresenceCache presenceCache) {
+        this.presenceCache = presenceCache;
+    }
+
+    public PusherOccupancy getOccupancy() {
+        return occupancy;
+    }
+
+    /**
+     * Registry of the occupied channels, used to skip the events published on vacant channels, or <code>null</code> to
+     * always send them (the default)
+     */
+    public void setOccupancy(PusherOccupancy occupancy) {
+        this.occupancy = occupancy;
     }
 
-    Response request(String method, String path) throws PusherException {
+    /**
+     * List the occupied channels. The channels are parsed while they are read from the response: the returned stream must be closed.
+     *
+     * @param prefix the prefix of the channels to list, or <code>null</code> for all of them
+     * @param info   the attributes to return for each channel: only {@link PusherChannelInfo#USER_COUNT} is supported, for presence channels
+     */
+    public Stream<PusherChannelInfo> getChannels(String prefix, String... info) throws PusherException {
+        MultivaluedMap<String, Object> params = new MultivaluedHashMap<>();
+        if (prefix != null) {
+            params.putSingle("filter_by_prefix", prefix);
+        }
+        if (info.length > 0) {
+            params.putSingle("info", String.join(",", info));
+        }
+        return new ResponseIterator<PusherChannelInfo>(request(HttpMethod.GET, "channels", null, params)) {
+            boolean started;
+
+            @Override
+            protected PusherChannelInfo read(JsonParser parser) {
+                if (!started) {
+                    started = true;
+                    if (JsonStreams.seek(parser, "channels") != JsonParser.Event.START_OBJECT) {
+                        return null;
+                    }
+                }
+                if (parser.next() != JsonParser.Event.KEY_NAME) {
+                    return null;
+                }
+                String name = parser.getString();
+                JsonStreams.expect(parser, JsonParser.Event.START_OBJECT);
+                return readChannelInfo(name, true, parser);
+            }
+        }.stream();
+    }
+
+    /**
+     * Read the attributes of a channel, up to the end of the object containing them
+     */
+    static PusherChannelInfo readChannelInfo(String name, boolean occupied, JsonParser parser) {
+        int userCount = -1;
+        int subscriptionCount = -1;
+        JsonParser.Event event;
+        while ((event = parser.next()) == JsonParser.Event.KEY_NAME) {
+            String key = parser.getString();
+            event = parser.next();
+            if (event == JsonParser.Event.VALUE_NUMBER && PusherChannelInfo.USER_COUNT.equals(key)) {
+                userCount = parser.getInt();
+            } else if (event == JsonParser.Event.VALUE_NUMBER && PusherChannelInfo.SUBSCRIPTION_COUNT.equals(key)) {
+                subscriptionCount = parser.getInt();
+            } else if ("occupied".equals(key)) {
+                occupied = event == JsonParser.Event.VALUE_TRUE;
+            } else {
+                JsonStreams.skip(parser, event);
+            }
+        }
+        if (event != JsonParser.Event.END_OBJECT) {
+            throw new IllegalStateException("Expected END_OBJECT but got " + event);
+        }
+        return new PusherChannelInfo(name, occupied, userCount, subscriptionCount);
+    }
+
+    CompletableFuture<JsonArray> fetchMembers(String channel) {
+        return requestAsync(HttpMethod.GET, "channels/" + SignatureUtil.encodePathSegment(channel) + "/users", null, new MultivaluedHashMap<>()).thenApply(response -> {
+            try (JsonReader reader = Json.createReader(response.getEntity())) {
+                return reader.readObject().getJsonArray("users");
+            } finally {
+                response.close();
+            }
+        });
+    }
+
+    PusherResponse request(String method, String path, JsonStructure body) throws PusherException {
+        return request(method, path, RequestBody.of(body), new MultivaluedHashMap<>());
+    }
+
+    PusherResponse request(String method, String path) throws PusherException {
         return request(method, path, null, new MultivaluedHashMap<>());
     }
 
-    Response request(String method, String path, JsonStructure body, MultivaluedMap<String, Object> queryParams) throws PusherException {
+    PusherResponse request(String method, String path, RequestBody body, MultivaluedMap<String, Object> queryParams) throws PusherException {
+        return request(method, path, body, queryParams, requestTimeoutNanos);
+    }
+
+    /**
+     * @param timeoutNanos the deadline of the request, retries included, or <code>0</code> for none
+     */
+    PusherResponse request(String method, String path, RequestBody body, MultivaluedMap<String, Object> queryParams, long timeoutNanos) throws PusherException {
+        return await(requestAsync(method, path, body, queryParams, timeoutNanos));
+    }
+
+    /**
+     * Wait for an asynchronous result, rethrowing its failure as is
+     */
+    static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ProcessingException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessingException(e);
+        }
+    }
+
+    CompletableFuture<PusherResponse> requestAsync(String method, String path, RequestBody body, MultivaluedMap<String, Object> queryParams) {
+        return requestAsync(method, path, body, queryParams, requestTimeoutNanos);
+    }
+
+    /**
+     * Asynchronous version of {@link #request(String, String, RequestBody, MultivaluedMap)} which does not block the calling thread,
+     * unless the in-flight limit is reached with the {@link PusherBackpressure#BLOCK} policy.
+     * <p>
+     * The returned future is completed exceptionally with a {@link PusherException} on non-200 statuses, with a
+     * {@link RejectedExecutionException} when the request is refused or dropped by the in-flight limit, the rate limiter or the circuit breaker,
+     * and with a {@link ProcessingException} on connection failures or when the deadline is reached.
+     */
+    CompletableFuture<PusherResponse> requestAsync(String method, String path, RequestBody body, MultivaluedMap<String, Object> queryParams, long timeoutNanos) {
+        return requestAsync(method, path, body, queryParams, timeoutNanos, true);
+    }
+
+    CompletableFuture<PusherResponse> requestAsync(String method, String path, RequestBody body, MultivaluedMap<String, Object> queryParams, long timeoutNanos, boolean spoolable) {
+        return requestAsync(method, path, body, queryParams, timeoutNanos, spoolable, PusherPriority.NORMAL);
+    }
+
+    /**
+     * @param spoolable false to never spool the request, i.e. when replaying the spool
+     * @param priority  the lane of the request in the rate limiter
+     */
+    CompletableFuture<PusherResponse> requestAsync(final String method, final String path, final RequestBody body, MultivaluedMap<String, Object> queryParams, long timeoutNanos, boolean spoolable, PusherPriority priority) {
         if (LOGGER.isLoggable(Level.FINEST)) {
             LOGGER.finest(method + " " + path + " : " + body);
         }
+        final PusherSpool spool = spoolable && body != null && HttpMethod.POST.equals(method) && ("events".equals(path) || "batch_events".equals(path)) ? this.spool : null;
+        final CompletableFuture<PusherResponse> result = new CompletableFuture<>();
         if (!isEnabled()) {
-            return Response.ok().build();
+            result.complete(spool != null && spool.append(path, body) ? PusherResponse.accepted() : PusherResponse.ok());
+            return result;
+        }
+        final PusherCircuitBreaker breaker = circuitBreaker;
+        if (breaker != null && !breaker.allowRequest()) {
+            result.completeExceptionally(new RejectedExecutionException("Pusher circuit breaker is open"));
+            return spool == null ? result : spoolOnFailure(result, path, body, spool);
+        }
+        final Call call = new Call(method, path, body, queryParams, priority, breaker, result);
+        if (timeoutNanos > 0) {
+            final ScheduledFuture<?> timeout = Scheduler.schedule(() -> {
+                call.timedOut = true;
+                result.completeExceptionally(new ProcessingException(new TimeoutException("Pusher request deadline of " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + "ms exceeded")));
+            }, timeoutNanos);
+            result.whenComplete((r, e) -> timeout.cancel(false));
+            call.deadline = System.nanoTime() + timeoutNanos;
+        }
+        call.attempt();
+        return spool == null ? result : spoolOnFailure(result, path, body, spool);
+    }
+
+    /**
+     * Requests failing for a transient reason are spooled and reported as accepted (202)
+     */
+    private static CompletableFuture<PusherResponse> spoolOnFailure(CompletableFuture<PusherResponse> result, final String path, final RequestBody body, final PusherSpool spool) {
+        final CompletableFuture<PusherResponse> spooled = new CompletableFuture<>();
+        result.whenComplete((response, failure) -> {
+            if (failure == null) {
+                spooled.complete(response);
+            } else if ((isRetryable(failure) || failure instanceof RejectedExecutionException) && spool.append(path, body)) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine("Spooled event for " + path + " after failure: " + failure);
+                }
+                spooled.complete(PusherResponse.accepted());
+            } else {
+                spooled.completeExceptionally(failure);
+            }
+        });
+        return spooled;
+    }
+
+    /**
+     * Send a request once, without retry, when the rate limiter allows it
+     */
+    private CompletableFuture<PusherResponse> send(final String method, final String path, final RequestBody body, final MultivaluedMap<String, Object> queryParams, PusherPriority priority) {
+        final CompletableFuture<PusherResponse> result = new CompletableFuture<>();
+        final PusherRateLimiter limiter = rateLimiter;
+        if (limiter == null) {
+            dispatch(method, path, body, queryParams, null, result);
         } else {
-            WebTarget t = target.path(path);
-            for (Map.Entry<String, List<Object>> entry : queryParams.entrySet()) {
-                t = t.queryParam(entry.getKey(), entry.getValue().toArray(new Object[entry.getValue().size()]));
+            limiter.submit(priority, () -> dispatch(method, path, body, queryParams, limiter, result), result);
+        }
+        return result;
+    }
+
+    private void dispatch(final String method, final String path, final RequestBody body, MultivaluedMap<String, Object> queryParams, final PusherRateLimiter rateLimiter, final CompletableFuture<PusherResponse> result) {
+        final PusherMetrics metrics = this.metrics;
+        final long signStart = metrics == null ? 0 : System.nanoTime();
+        final String url;
+        try {
+            url = signatureUtil.signUrl(method, baseUrl, basePath + path, body, queryParams, getKey());
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        final long signNanos = metrics == null ? 0 : System.nanoTime() - signStart;
+        final InFlightLimiter limiter = inFlightLimiter;
+        final InFlightLimiter.Ticket ticket;
+        try {
+            ticket = limiter == null ? null : limiter.acquire(result);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        final long sentAt = metrics == null ? 0 : System.nanoTime();
+        CompletableFuture<PusherResponse> exchange;
+        try {
+            exchange = transport.send(method, url, body == null ? null : body.getBytes());
+        } catch (RuntimeException e) {
+            exchange = new CompletableFuture<>();
+            exchange.completeExceptionally(e);
+        }
+        if (ticket != null) {
+            ticket.attach(exchange);
+        }
+        final CompletableFuture<PusherResponse> future = exchange;
+        future.whenComplete((response, failure) -> {
+            if (ticket != null) {
+                ticket.release();
+            }
+            if (failure instanceof CompletionException && failure.getCause() != null) {
+                failure = failure.getCause();
+            }
+            if (metrics != null) {
+                reportRequest(metrics, method, path, failure == null ? response.getStatus() : PusherMetrics.NO_STATUS, body, signNanos, sentAt);
             }
-            Invocation.Builder builder = SignatureUtil.sign(method, t, body, queryParams, getKey(), getSecret()).request(MediaType.APPLICATION_JSON_TYPE);
-            Response response = body == null ? builder.method(method) : builder.method(method, Entity.entity(body, "application/json; charset=utf-8"));
-            if (response.getStatus() != 200) {
-                throw new PusherException(response, body);
+            if (rateLimiter != null && failure == null) {
+                if (response.getStatus() == 429) {
+                    rateLimiter.onThrottled();
+                } else if (response.getStatus() == 200) {
+                    rateLimiter.onSuccess();
+                }
             }
-            return response;
+            if (failure != null) {
+                result.completeExceptionally(failure);
+            } else if (response.getStatus() != 200) {
+                result.completeExceptionally(new PusherException(response, body));
+            } else if (!result.complete(response)) {
+                // dropped by the in-flight limit
+                response.close();
+            }
+        });
+        result.whenComplete((r, e) -> {
+            if (e instanceof CancellationException) {
+                future.cancel(true);
+            }
+        });
+    }
+
+    private String channelData(final PusherPresence user) {
+        final PusherPresenceCache cache = this.presenceCache;
+        return cache == null ? user.toJson().toString() : cache.getChannelData(user);
+    }
+
+    /**
+     * @return the channels which may have subscribers according to the {@link PusherOccupancy}, if any
+     */
+    List<String> occupied(List<String> channels) {
+        final PusherOccupancy occupancy = this.occupancy;
+        return occupancy == null ? channels : occupancy.filter(channels);
+    }
+
+    /**
+     * Report an event accepted for publication to the metrics listener, if any
+     */
+    void reportPublish(Collection<String> channels, String eventName, String data) {
+        if (metrics != null) {
+            reportPublish(channels, eventName, EventChunks.size(data));
+        }
+    }
+
+    private void reportPublish(Collection<String> channels, String eventName, int size) {
+        final PusherMetrics metrics = this.metrics;
+        if (metrics == null) {
+            return;
+        }
+        try {
+            for (String channel : channels) {
+                metrics.onPublish(channel, eventName, size);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Metrics listener failed: " + e.getMessage(), e);
+        }
+    }
+
+    private static void reportRequest(PusherMetrics metrics, String method, String path, int status, RequestBody body, long signNanos, long sentAt) {
+        try {
+            metrics.onRequest(method, path, status, body == null ? 0 : body.length(), signNanos, System.nanoTime() - sentAt);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Metrics listener failed: " + e.getMessage(), e);
+        }
+    }
+
+    private static void reportAuthentication(PusherMetrics metrics, String channel, long start) {
+        try {
+            metrics.onAuthenticate(channel, System.nanoTime() - start);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Metrics listener failed: " + e.getMessage(), e);
+        }
+    }
+
+    private static boolean isRetryable(Throwable failure) {
+        return failure instanceof PusherException ? ((PusherException) failure).isRetryable() : failure instanceof ProcessingException;
+    }
+
+    /**
+     * A request with its retries and hedged attempts
+     */
+    private final class Call {
+
+        final String method;
+        final String path;
+        final RequestBody body;
+        final MultivaluedMap<String, Object> queryParams;
+        final PusherPriority priority;
+        final PusherCircuitBreaker breaker;
+        final PusherRetryPolicy retryPolicy = getRetryPolicy();
+        final CompletableFuture<PusherResponse> result;
+        final Set<CompletableFuture<PusherResponse>> pending = ConcurrentHashMap.newKeySet();
+        long deadline;
+        int attempts;
+        volatile boolean timedOut;
+
+        Call(String method, String path, RequestBody body, MultivaluedMap<String, Object> queryParams, PusherPriority priority, PusherCircuitBreaker breaker, CompletableFuture<PusherResponse> result) {
+            this.method = method;
+            this.priority = priority;
+            this.path = path;
+            this.body = body;
+            this.queryParams = queryParams;
+            this.breaker = breaker;
+            this.result = result;
+            // cancel attempts still running when the deadline is reached
+            result.whenComplete((r, e) -> {
+                for (CompletableFuture<PusherResponse> attempt : pending) {
+                    attempt.cancel(true);
+                }
+            });
+        }
+
+        void attempt() {
+            attempts++;
+            final CompletableFuture<PusherResponse> attempt = send(method, path, body, queryParams, priority);
+            if (hedgeDelayNanos > 0 && HttpMethod.GET.equals(method) && (deadline == 0 || System.nanoTime() + hedgeDelayNanos < deadline)) {
+                pending.add(attempt);
+                final ScheduledFuture<?> hedge = Scheduler.schedule(() -> {
+                    if (!result.isDone()) {
+                        CompletableFuture<PusherResponse> hedged = send(method, path, body, queryParams, priority);
+                        pending.add(hedged);
+                        hedged.whenComplete((r, e) -> onComplete(hedged, r, e, false));
+                    }
+                }, hedgeDelayNanos);
+                attempt.whenComplete((r, e) -> {
+                    hedge.cancel(false);
+                    onComplete(attempt, r, e, true);
+                });
+            } else {
+                pending.add(attempt);
+                attempt.whenComplete((r, e) -> onComplete(attempt, r, e, true));
+            }
+        }
+
+        private void onComplete(CompletableFuture<PusherResponse> attempt, PusherResponse response, Throwable failure, boolean primary) {
+            pending.remove(attempt);
+            if (failure instanceof CompletionException && failure.getCause() != null) {
+                failure = failure.getCause();
+            }
+            if (failure == null) {
+                if (breaker != null) {
+                    breaker.onSuccess();
+                }
+                if (!result.complete(response)) {
+                    response.close();
+                }
+                return;
+            }
+            boolean retryable = isRetryable(failure);
+            if (failure instanceof CancellationException || result.isDone()) {
+                if (breaker != null) {
+                    // a trial request must always end, or the breaker would stay half-open
+                    if (timedOut || retryable) {
+                        breaker.onFailure();
+                    } else {
+                        breaker.release();
+                    }
+                }
+                return;
+            }
+            if (breaker != null) {
+                if (retryable) {
+                    breaker.onFailure();
+                } else if (failure instanceof RejectedExecutionException) {
+                    // refused by a local limit: Pusher was not reached
+                    breaker.release();
+                } else {
+                    breaker.onSuccess();
+                }
+            }
+            if (!primary) {
+                // the primary attempt decides of the retries
+                return;
+            }
+            long delay = retryable && attempts < retryPolicy.getMaxAttempts() ? retryPolicy.getBackoff(attempts, TimeUnit.NANOSECONDS) : -1;
+            if (delay < 0 || deadline != 0 && System.nanoTime() + delay >= deadline || breaker != null && !breaker.allowRequest()) {
+                result.completeExceptionally(failure);
+                return;
+            }
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Retrying " + method + " " + path + " in " + TimeUnit.NANOSECONDS.toMillis(delay) + "ms after attempt " + attempts + " failed: " + failure);
+            }
+            Scheduler.schedule(() -> {
+                if (!result.isDone()) {
+                    attempt();
+                }
+            }, delay);
+        }
+    }
+
+    private static final class Scheduler {
+
+        private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pusher-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+
+        // scheduled tasks may block on the in-flight limit or run blocking callbacks: they never run on the timer thread
+        private static final AtomicInteger THREADS = new AtomicInteger();
+        private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "pusher-scheduled-" + THREADS.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        static ScheduledFuture<?> schedule(Runnable task, long delayNanos) {
+            return TIMER.schedule(() -> EXECUTOR.execute(task), delayNanos, TimeUnit.NANOSECONDS);
         }
     }
 
@@ -18,6 +18,7 @@ package com.guestful.client.pusher;
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
+import java.util.Map;
 
 /**
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
@@ -58,6 +59,23 @@ public final class PusherAuth {
         return builder.build();
     }
 
+    /**
+     * Build the response of a batching authorizer:
+     * <code>{"private-a": {"status": 200, "data": {"auth": "..."}}, ...}</code>
+     *
+     * @see Pusher#authenticate(String, java.util.Collection, PusherPresence)
+     */
+    public static JsonObject toJson(Map<String, PusherAuth> auths) {
+        Prerequisites.nonNull("auths", auths);
+        JsonObjectBuilder builder = Json.createObjectBuilder();
+        for (Map.Entry<String, PusherAuth> entry : auths.entrySet()) {
+            builder.add(entry.getKey(), Json.createObjectBuilder()
+                .add("status", 200)
+                .add("data", entry.getValue().toJson()));
+        }
+        return builder.build();
+    }
+
     @Override
     public String toString() {
         return getAuth();
@@ -0,0 +1,42 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+/**
+ * What an asynchronous request does when the maximum number of in-flight requests is reached
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ * @see Pusher#setMaxInFlight(int, PusherBackpressure)
+ */
+public enum PusherBackpressure {
+
+    /**
+     * The calling thread waits until an in-flight request completes
+     */
+    BLOCK,
+
+    /**
+     * The new request is refused: its future completes with a {@link java.util.concurrent.RejectedExecutionException}
+     */
+    FAIL_FAST,
+
+    /**
+     * The oldest in-flight request is cancelled to make room for the new one: its future completes with a
+     * {@link java.util.concurrent.RejectedExecutionException}
+     */
+    DROP_OLDEST
+
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import javax.json.JsonStructure;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.core.MultivaluedHashMap;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects events published from many threads and sends them in groups through the <code>batch_events</code> endpoint.
+ * <p>
+ * A batch is flushed as soon as it holds <code>maxBatchSize</code> events or when its first event has waited
+ * <code>maxDelay</code>, whichever comes first. Batches are sent as asynchronous requests, so they are subject to the
+ * in-flight limit of the {@link Pusher}.
+ * <p>
+ * Each returned future is completed with the outcome of the batch the event was sent in.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class PusherBatchPublisher implements Closeable {
+
+    /**
+     * Maximum number of events accepted by Pusher in one <code>batch_events</code> request
+     */
+    public static final int MAX_BATCH_SIZE = 10;
+
+    private static final Logger LOGGER = Logger.getLogger(PusherBatchPublisher.class.getName());
+
+    private final Pusher client;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final BlockingQueue<PendingEvent> queue = new LinkedBlockingQueue<>();
+    private final Thread flusher;
+
+    private volatile boolean closed;
+
+    public PusherBatchPublisher(Pusher client) {
+        this(client, MAX_BATCH_SIZE, 5, TimeUnit.MILLISECONDS);
+    }
+
+    public PusherBatchPublisher(Pusher client, int maxBatchSize, long maxDelay, TimeUnit unit) {
+        Prerequisites.nonNull("client", client);
+        Prerequisites.nonNull("unit", unit);
+        if (maxBatchSize < 1 || maxBatchSize > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("Parameter [maxBatchSize] must be between 1 and " + MAX_BATCH_SIZE);
+        }
+        this.client = client;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.flusher = new Thread(this::run, "pusher-batch-" + client.getAppId());
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public Pusher getClient() {
+        return client;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public CompletableFuture<Void> publish(String channel, String eventName, JsonStructure eventData) {
+        Prerequisites.nonNull("channel", channel);
+        Prerequisites.nonNull("eventName", eventName);
+        Prerequisites.nonNull("data", eventData);
+        String data = eventData.toString();
+        List<String> chunks = client.chunk(data);
+        if (client.occupied(Collections.singletonList(channel)).isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        client.reportPublish(Collections.singletonList(channel), eventName, data);
+        if (chunks != null) {
+            // batches may complete out of order: browsers reassemble the chunks by index
+            List<CompletableFuture<Void>> futures = new ArrayList<>(chunks.size());
+            for (String chunk : chunks) {
+                futures.add(enqueue(new PendingEvent(channel, EventChunks.PREFIX + eventName, chunk)));
+            }
+            return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+        }
+        return enqueue(new PendingEvent(channel, eventName, data));
+    }
+
+    private CompletableFuture<Void> enqueue(PendingEvent event) {
+        if (closed) {
+            event.future.completeExceptionally(new IllegalStateException("Batch publisher is closed"));
+        } else {
+            queue.add(event);
+            // close() may have drained the queue between the check and the add
+            if (closed && queue.remove(event)) {
+                event.future.completeExceptionally(new IllegalStateException("Batch publisher is closed"));
+            }
+        }
+        return event.future;
+    }
+
+    /**
+     * Stops accepting events, flushes the pending ones and waits for the flushing thread to terminate.
+     * Batches already sent complete asynchronously.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<PendingEvent> batch = new ArrayList<>(maxBatchSize);
+        try {
+            while (!closed || !queue.isEmpty()) {
+                PendingEvent first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatchSize) {
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() == maxBatchSize || remaining <= 0 || closed) {
+                        break;
+                    }
+                    PendingEvent next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                flush(new ArrayList<>(batch));
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            batch.addAll(queue);
+            queue.clear();
+            for (PendingEvent event : batch) {
+                event.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void flush(final List<PendingEvent> batch) {
+        RequestBody body = RequestBody.write(generator -> {
+            generator.writeStartObject().writeStartArray("batch");
+            for (PendingEvent event : batch) {
+                generator.writeStartObject()
+                    .write("channel", event.channel)
+                    .write("name", event.name)
+                    .write("data", event.data)
+                    .writeEnd();
+            }
+            generator.writeEnd().writeEnd();
+        });
+        client.requestAsync(HttpMethod.POST, "batch_events", body, new MultivaluedHashMap<>()).whenComplete((response, e) -> {
+            if (e != null) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.log(Level.FINE, "Failed to send batch of " + batch.size() + " events", e);
+                }
+                for (PendingEvent event : batch) {
+                    event.future.completeExceptionally(e);
+                }
+            } else {
+                response.close();
+                for (PendingEvent event : batch) {
+                    event.future.complete(null);
+                }
+            }
+        });
+    }
+
+    private static final class PendingEvent {
+        final String channel;
+        final String name;
+        final String data;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingEvent(String channel, String name, String data) {
+            this.channel = channel;
+            this.name = name;
+            this.data = data;
+        }
+    }
+
+}
@@ -17,10 +17,15 @@ package com.guestful.client.pusher;
 
 import javax.json.Json;
 import javax.json.JsonArray;
-import javax.json.JsonObject;
 import javax.json.JsonStructure;
+import javax.json.stream.JsonParser;
 import javax.ws.rs.HttpMethod;
-import java.io.StringReader;
+import javax.ws.rs.core.MultivaluedHashMap;
+import javax.ws.rs.core.MultivaluedMap;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 /**
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
@@ -48,20 +53,134 @@ public class PusherChannel {
         return name;
     }
 
+    /**
+     * @return the users subscribed to this presence channel, from the {@link Pusher#getMemberCache()} if any
+     */
     public JsonArray getMembers() {
-        String json = getClient().request(HttpMethod.GET, "channels/" + getName() + "/users").readEntity(String.class);
-        return Json.createReader(new StringReader(json)).readObject().getJsonArray("users");
+        return Pusher.await(getMembersAsync());
+    }
+
+    public CompletableFuture<JsonArray> getMembersAsync() {
+        PusherMemberCache cache = getClient().getMemberCache();
+        return cache == null ? getClient().fetchMembers(getName()) : cache.getMembers(this);
+    }
+
+    /**
+     * Stream the ids of the users subscribed to this presence channel while they are read from Pusher, bypassing the
+     * member cache. The returned stream must be closed.
+     */
+    public Stream<String> streamMembers() throws PusherException {
+        return new ResponseIterator<String>(getClient().request(HttpMethod.GET, "channels/" + SignatureUtil.encodePathSegment(getName()) + "/users")) {
+            boolean started;
+
+            @Override
+            protected String read(JsonParser parser) {
+                if (!started) {
+                    started = true;
+                    if (JsonStreams.seek(parser, "users") != JsonParser.Event.START_ARRAY) {
+                        return null;
+                    }
+                }
+                JsonParser.Event event;
+                while ((event = parser.next()) == JsonParser.Event.START_OBJECT) {
+                    String id = null;
+                    while ((event = parser.next()) == JsonParser.Event.KEY_NAME) {
+                        String key = parser.getString();
+                        event = parser.next();
+                        if ("id".equals(key) && (event == JsonParser.Event.VALUE_STRING || event == JsonParser.Event.VALUE_NUMBER)) {
+                            id = parser.getString();
+                        } else {
+                            JsonStreams.skip(parser, event);
+                        }
+                    }
+                    if (id != null) {
+                        return id;
+                    }
+                }
+                return null;
+            }
+        }.stream();
+    }
+
+    /**
+     * Query the state of this channel
+     *
+     * @param info the attributes to return: {@link PusherChannelInfo#USER_COUNT} (presence channels only) and {@link PusherChannelInfo#SUBSCRIPTION_COUNT}
+     */
+    public PusherChannelInfo getInfo(String... info) throws PusherException {
+        MultivaluedMap<String, Object> params = new MultivaluedHashMap<>();
+        if (info.length > 0) {
+            params.putSingle("info", String.join(",", info));
+        }
+        PusherResponse response = getClient().request(HttpMethod.GET, "channels/" + SignatureUtil.encodePathSegment(getName()), null, params);
+        try (JsonParser parser = Json.createParser(response.getEntity())) {
+            JsonStreams.expect(parser, JsonParser.Event.START_OBJECT);
+            return Pusher.readChannelInfo(getName(), false, parser);
+        } finally {
+            response.close();
+        }
     }
 
     public void publish(String eventName, JsonStructure eventData) throws PusherException {
         Prerequisites.nonNull("eventName", eventName);
         Prerequisites.nonNull("data", eventData);
-        JsonObject body = Json.createObjectBuilder()
-            .add("channels", Json.createArrayBuilder().add(getName()))
-            .add("name", eventName)
-            .add("data", eventData.toString())
-            .build();
-        getClient().request(HttpMethod.POST, "events", body);
+        getClient().publish(Collections.singletonList(getName()), eventName, eventData.toString());
+    }
+
+    /**
+     * Publish an event, failing with a {@link javax.ws.rs.ProcessingException} if it could not be sent within the given time, retries included
+     */
+    public void publish(String eventName, JsonStructure eventData, long timeout, TimeUnit unit) throws PusherException {
+        Prerequisites.nonNull("eventName", eventName);
+        Prerequisites.nonNull("data", eventData);
+        Prerequisites.nonNull("unit", unit);
+        getClient().publish(Collections.singletonList(getName()), eventName, eventData.toString(), unit.toNanos(timeout));
+    }
+
+    /**
+     * Publish an event whose data is already serialized, i.e. cached JSON
+     */
+    public void publish(String eventName, String eventData) throws PusherException {
+        Prerequisites.nonNull("eventName", eventName);
+        Prerequisites.nonNull("data", eventData);
+        getClient().publish(Collections.singletonList(getName()), eventName, eventData);
+    }
+
+    /**
+     * Publish an event whose data is already serialized as UTF-8 bytes, i.e. cached JSON
+     */
+    public void publish(String eventName, byte[] eventData) throws PusherException {
+        Prerequisites.nonNull("eventName", eventName);
+        Prerequisites.nonNull("data", eventData);
+        getClient().publish(Collections.singletonList(getName()), eventName, eventData);
+    }
+
+    /**
+     * Publish an event without blocking the calling thread.
+     *
+     * @see Pusher#setMaxInFlight(int, PusherBackpressure)
+     */
+    public CompletableFuture<Void> publishAsync(String eventName, JsonStructure eventData) {
+        Prerequisites.nonNull("eventName", eventName);
+        Prerequisites.nonNull("data", eventData);
+        return getClient().publishAsync(Collections.singletonList(getName()), eventName, eventData.toString());
+    }
+
+    /**
+     * Publish an event in the given lane of the {@link PusherRateLimiter} of the client
+     */
+    public void publish(String eventName, JsonStructure eventData, PusherPriority priority) throws PusherException {
+        Pusher.await(publishAsync(eventName, eventData, priority));
+    }
+
+    /**
+     * Publish an event in the given lane of the {@link PusherRateLimiter} of the client, without blocking the calling thread
+     */
+    public CompletableFuture<Void> publishAsync(String eventName, JsonStructure eventData, PusherPriority priority) {
+        Prerequisites.nonNull("eventName", eventName);
+        Prerequisites.nonNull("data", eventData);
+        Prerequisites.nonNull("priority", priority);
+        return getClient().publishAsync(Collections.singletonList(getName()), eventName, eventData.toString(), priority);
     }
 
 }
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+/**
+ * Attributes of a channel returned by the channel query API. Attributes which were not requested or not returned are <code>-1</code>.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PusherChannelInfo {
+
+    public static final String USER_COUNT = "user_count";
+    public static final String SUBSCRIPTION_COUNT = "subscription_count";
+
+    private final String name;
+    private final boolean occupied;
+    private final int userCount;
+    private final int subscriptionCount;
+
+    PusherChannelInfo(String name, boolean occupied, int userCount, int subscriptionCount) {
+        this.name = name;
+        this.occupied = occupied;
+        this.userCount = userCount;
+        this.subscriptionCount = subscriptionCount;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isOccupied() {
+        return occupied;
+    }
+
+    /**
+     * @return the number of distinct users of a presence channel, or <code>-1</code>
+     */
+    public int getUserCount() {
+        return userCount;
+    }
+
+    /**
+     * @return the number of connections subscribed to the channel, or <code>-1</code>
+     */
+    public int getSubscriptionCount() {
+        return subscriptionCount;
+    }
+
+    @Override
+    public String toString() {
+        return name + (userCount == -1 ? "" : " users: " + userCount) + (subscriptionCount == -1 ? "" : " subscriptions: " + subscriptionCount);
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Fails requests fast while Pusher is unhealthy.
+ * <p>
+ * The breaker opens after <code>failureThreshold</code> consecutive retryable failures (5xx, 429 or connection errors).
+ * Once <code>openDuration</code> has elapsed, one trial request is let through: the breaker closes if it succeeds and opens again otherwise.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ * @see Pusher#setCircuitBreaker(PusherCircuitBreaker)
+ */
+public final class PusherCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openDurationNanos;
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicLong openedAt = new AtomicLong();
+
+    public PusherCircuitBreaker(int failureThreshold, long openDuration, TimeUnit unit) {
+        Prerequisites.nonNull("unit", unit);
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException("Parameter [failureThreshold] must be positive");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openDurationNanos = unit.toNanos(openDuration);
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * @return true if a request can be sent, false if it must fail fast
+     */
+    boolean allowRequest() {
+        switch (state.get()) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return System.nanoTime() - openedAt.get() >= openDurationNanos && state.compareAndSet(State.OPEN, State.HALF_OPEN);
+            default:
+                // a trial request is already running
+                return false;
+        }
+    }
+
+    void onSuccess() {
+        failures.set(0);
+        state.compareAndSet(State.HALF_OPEN, State.CLOSED);
+    }
+
+    /**
+     * End a trial request without a verdict on the health of Pusher, i.e. when it was cancelled by the caller or refused
+     * locally, so that the next request becomes the trial
+     */
+    void release() {
+        state.compareAndSet(State.HALF_OPEN, State.OPEN);
+    }
+
+    void onFailure() {
+        if (state.get() == State.HALF_OPEN || failures.incrementAndGet() >= failureThreshold) {
+            openedAt.set(System.nanoTime());
+            state.set(State.OPEN);
+            failures.set(0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return state.get().name();
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import javax.json.JsonStructure;
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes state snapshots for which only the latest value matters.
+ * <p>
+ * The first event published for a (channel, event name, entity key) starts a window of <code>window</code>: events published
+ * for the same key during the window replace the pending one, and only the latest is sent when the window ends.
+ * All the publications merged in a window share the same future, completed with the outcome of the event actually sent.
+ * The events of a key are sent one after the other, so a snapshot never overtakes the previous one of the same key.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class PusherCoalescingPublisher implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(PusherCoalescingPublisher.class.getName());
+
+    private final Pusher client;
+    private final long windowNanos;
+    private final ConcurrentMap<Key, Pending> pending = new ConcurrentHashMap<>();
+    // the last event sent for each key, until it completes
+    private final ConcurrentMap<Key, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService executor;
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+
+    private volatile boolean closed;
+
+    public PusherCoalescingPublisher(Pusher client, long window, TimeUnit unit) {
+        Prerequisites.nonNull("client", client);
+        Prerequisites.nonNull("unit", unit);
+        if (window <= 0) {
+            throw new IllegalArgumentException("Parameter [window] must be positive");
+        }
+        this.client = client;
+        this.windowNanos = unit.toNanos(window);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pusher-coalescing-" + client.getAppId());
+            t.setDaemon(true);
+            return t;
+        });
+        // publishing may block on a full rate limiter: it never runs on the scheduler thread, which flushes all the windows
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "pusher-coalescing-" + client.getAppId() + "-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public Pusher getClient() {
+        return client;
+    }
+
+    public CompletableFuture<Void> publish(String channel, String eventName, JsonStructure eventData) {
+        return publish(channel, eventName, null, eventData);
+    }
+
+    /**
+     * @param entityKey identifies the entity the event is a snapshot of when several entities share a channel and an event name,
+     *                  i.e. a table id, or <code>null</code>
+     */
+    public CompletableFuture<Void> publish(String channel, String eventName, String entityKey, JsonStructure eventData) {
+        Prerequisites.nonNull("channel", channel);
+        Prerequisites.nonNull("eventName", eventName);
+        Prerequisites.nonNull("data", eventData);
+        if (closed) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("Coalescing publisher is closed"));
+            return future;
+        }
+        submitted.increment();
+        final Key key = new Key(channel, eventName, entityKey);
+        while (true) {
+            Pending p = pending.get(key);
+            if (p == null) {
+                p = new Pending(key, eventData);
+                if (pending.putIfAbsent(key, p) == null) {
+                    final Pending scheduled = p;
+                    try {
+                        scheduler.schedule(() -> flush(scheduled), windowNanos, TimeUnit.NANOSECONDS);
+                    } catch (RejectedExecutionException e) {
+                        // closed concurrently
+                        flush(scheduled);
+                    }
+                    return p.future;
+                }
+            } else {
+                synchronized (p) {
+                    if (!p.flushed) {
+                        p.data = eventData;
+                        suppressed.increment();
+                        return p.future;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of events given to this publisher
+     */
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    /**
+     * @return the number of events sent to Pusher
+     */
+    public long getSent() {
+        return sent.sum();
+    }
+
+    /**
+     * @return the number of events replaced by a newer one before being sent
+     */
+    public long getSuppressed() {
+        return suppressed.sum();
+    }
+
+    /**
+     * @return the number of keys waiting for the end of their window
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * Stops accepting events and sends the pending ones immediately
+     */
+    @Override
+    public void close() {
+        closed = true;
+        scheduler.shutdownNow();
+        for (Pending p : pending.values()) {
+            flush(p);
+        }
+        executor.shutdown();
+    }
+
+    private void publish(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // closed: the events of a key still waiting for the previous one are sent by the thread completing it
+            task.run();
+        }
+    }
+
+    private void flush(Pending p) {
+        final JsonStructure data;
+        synchronized (p) {
+            if (p.flushed) {
+                return;
+            }
+            p.flushed = true;
+            data = p.data;
+        }
+        pending.remove(p.key, p);
+        sent.increment();
+        final CompletableFuture<Void> tail = new CompletableFuture<>();
+        final CompletableFuture<Void> previous = tails.put(p.key, tail);
+        final CompletableFuture<Void> ready = previous == null ? CompletableFuture.completedFuture(null) : previous.handle((v, e) -> null);
+        ready.thenComposeAsync(v -> client.publishAsync(Collections.singletonList(p.key.channel), p.key.eventName, data.toString()), this::publish).whenComplete((v, failure) -> {
+            tails.remove(p.key, tail);
+            tail.complete(null);
+            Throwable e = failure;
+            if (e instanceof CompletionException && e.getCause() != null) {
+                e = e.getCause();
+            }
+            if (e != null) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.log(Level.FINE, "Failed to publish " + p.key.eventName + " on " + p.key.channel, e);
+                }
+                p.future.completeExceptionally(e);
+            } else {
+                p.future.complete(null);
+            }
+        });
+    }
+
+    private static final class Key {
+        final String channel;
+        final String eventName;
+        final String entityKey;
+        final int hash;
+
+        Key(String channel, String eventName, String entityKey) {
+            this.channel = channel;
+            this.eventName = eventName;
+            this.entityKey = entityKey;
+            this.hash = Objects.hash(channel, eventName, entityKey);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return channel.equals(key.channel) && eventName.equals(key.eventName) && Objects.equals(entityKey, key.entityKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Pending {
+        final Key key;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        JsonStructure data;
+        boolean flushed;
+
+        Pending(Key key, JsonStructure data) {
+            this.key = key;
+            this.data = data;
+        }
+    }
+
+}
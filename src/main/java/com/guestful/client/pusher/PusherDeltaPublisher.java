@@ -0,0 +1,231 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonStructure;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes successive states of an entity as <a href="https://tools.ietf.org/html/rfc6902">JSON Patch</a> deltas.
+ * <p>
+ * The publisher remembers the last state sent for each (channel, event name, entity key). Each state is published as the
+ * event name with one of these data:
+ * <ul>
+ * <li>a keyframe holding the full state: <code>{"seq": 12, "state": {...}}</code></li>
+ * <li>a delta from the previous state: <code>{"seq": 13, "base": 12, "patch": [{"op": "replace", "path": "/tables/3/status", "value": "seated"}]}</code></li>
+ * </ul>
+ * with <code>"key"</code> added when an entity key is given. Subscribers apply a delta only when its <code>base</code> is
+ * the <code>seq</code> of the state they hold, and otherwise wait for the next keyframe.
+ * <p>
+ * A keyframe is sent for the first state, every <code>keyframeInterval</code> states, when the delta would not be smaller
+ * than the state, and after a failed publication. The states of an entity are sent one after the other, in the order they
+ * are given. The least recently used entities are forgotten past <code>maxEntries</code>: their next state is a keyframe.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class PusherDeltaPublisher {
+
+    private static final Logger LOGGER = Logger.getLogger(PusherDeltaPublisher.class.getName());
+
+    private final Pusher client;
+    private final int keyframeInterval;
+    private final Map<Key, Entity> entities;
+    // unique across entities, so that a delta can never apply to a state it was not computed from
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder keyframes = new LongAdder();
+    private final LongAdder deltas = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+
+    /**
+     * @param keyframeInterval the maximum number of states sent for an entity between two keyframes, 1 to always send the full state
+     * @param maxEntries       the maximum number of entities remembered
+     */
+    public PusherDeltaPublisher(Pusher client, int keyframeInterval, final int maxEntries) {
+        Prerequisites.nonNull("client", client);
+        if (keyframeInterval < 1) {
+            throw new IllegalArgumentException("Parameter [keyframeInterval] must be positive");
+        }
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Parameter [maxEntries] must be positive");
+        }
+        this.client = client;
+        this.keyframeInterval = keyframeInterval;
+        this.entities = new LinkedHashMap<Key, Entity>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entity> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public Pusher getClient() {
+        return client;
+    }
+
+    public CompletableFuture<Void> publish(String channel, String eventName, JsonStructure state) {
+        return publish(channel, eventName, null, state);
+    }
+
+    /**
+     * @param entityKey identifies the entity when several entities share a channel and an event name, i.e. a table id,
+     *                  or <code>null</code>
+     */
+    public CompletableFuture<Void> publish(String channel, String eventName, String entityKey, JsonStructure state) {
+        Prerequisites.nonNull("channel", channel);
+        Prerequisites.nonNull("eventName", eventName);
+        Prerequisites.nonNull("state", state);
+        final Key key = new Key(channel, eventName, entityKey);
+        Entity entity;
+        synchronized (entities) {
+            entity = entities.get(key);
+            if (entity == null) {
+                entity = new Entity();
+                entities.put(key, entity);
+            }
+        }
+        final Entity e = entity;
+        synchronized (e) {
+            final long seq = sequence.incrementAndGet();
+            final String full = envelope(entityKey, seq).add("state", state).build().toString();
+            String data = full;
+            if (e.state != null && !e.resync && e.sinceKeyframe + 1 < keyframeInterval) {
+                final JsonArray patch = JsonPatches.diff(e.state, state);
+                final String delta = envelope(entityKey, seq).add("base", e.seq).add("patch", patch).build().toString();
+                final int fullSize = EventChunks.size(full);
+                final int deltaSize = EventChunks.size(delta);
+                if (deltaSize < fullSize) {
+                    data = delta;
+                    bytesSaved.add(fullSize - deltaSize);
+                }
+            }
+            if (data == full) {
+                keyframes.increment();
+                e.sinceKeyframe = 0;
+            } else {
+                deltas.increment();
+                e.sinceKeyframe++;
+            }
+            e.state = state;
+            e.seq = seq;
+            e.resync = false;
+            final String eventData = data;
+            final CompletableFuture<Void> sent = e.tail.handle((v, t) -> null).thenCompose(v -> client.publishAsync(Collections.singletonList(channel), eventName, eventData));
+            sent.whenComplete((v, t) -> {
+                if (t != null) {
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        LOGGER.log(Level.FINE, "Failed to publish " + eventName + " on " + channel + ", sending a keyframe next", t);
+                    }
+                    synchronized (e) {
+                        e.resync = true;
+                    }
+                }
+            });
+            e.tail = sent;
+            return sent;
+        }
+    }
+
+    /**
+     * Send the next state of the entities of a channel as a keyframe, i.e. when a subscriber joins
+     */
+    public void invalidate(String channel) {
+        synchronized (entities) {
+            entities.keySet().removeIf(key -> key.channel.equals(channel));
+        }
+    }
+
+    public void clear() {
+        synchronized (entities) {
+            entities.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entities) {
+            return entities.size();
+        }
+    }
+
+    public long getKeyframes() {
+        return keyframes.sum();
+    }
+
+    public long getDeltas() {
+        return deltas.sum();
+    }
+
+    /**
+     * @return the number of bytes not sent thanks to the deltas, compared to sending every state in full
+     */
+    public long getBytesSaved() {
+        return bytesSaved.sum();
+    }
+
+    private static JsonObjectBuilder envelope(String entityKey, long seq) {
+        JsonObjectBuilder builder = Json.createObjectBuilder();
+        if (entityKey != null) {
+            builder.add("key", entityKey);
+        }
+        return builder.add("seq", seq);
+    }
+
+    private static final class Key {
+        final String channel;
+        final String eventName;
+        final String entityKey;
+        final int hash;
+
+        Key(String channel, String eventName, String entityKey) {
+            this.channel = channel;
+            this.eventName = eventName;
+            this.entityKey = entityKey;
+            this.hash = Objects.hash(channel, eventName, entityKey);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return channel.equals(key.channel) && eventName.equals(key.eventName) && Objects.equals(entityKey, key.entityKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entity {
+        JsonStructure state;
+        long seq;
+        int sinceKeyframe;
+        boolean resync;
+        CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+    }
+
+}
@@ -15,39 +15,115 @@
  */
 package com.guestful.client.pusher;
 
+import javax.json.Json;
+import javax.json.JsonReader;
 import javax.json.JsonStructure;
 import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.io.Serializable;
 
 /**
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
  */
 public class PusherException extends RuntimeException {
 
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Maximum number of bytes of the response entity kept in the exception
+     */
+    static final int MAX_RESPONSE_SIZE = 8 * 1024;
+
     private final Response.StatusType statusType;
     private final String response;
-    private final JsonStructure body;
+    // not serialized: only used to build the message and by getBody()
+    private final transient RequestBody body;
 
-    PusherException(Response response, JsonStructure body) {
-        this(response.getStatusInfo(), response.readEntity(String.class), body);
-    }
+    // built on first use
+    private String message;
 
-    private PusherException(Response.StatusType statusType, String response, JsonStructure body) {
-        super("Pusher request error. " + statusType.getStatusCode() + " " + statusType.getReasonPhrase() + "\n" + response + "\nBody:\n" + body);
-        this.statusType = statusType;
-        this.response = response;
+    /**
+     * Read the beginning of the response entity and close the response
+     */
+    PusherException(PusherResponse response, RequestBody body) {
+        this.statusType = new Status(response.getStatus(), response.getReasonPhrase());
         this.body = body;
+        String entity;
+        try {
+            entity = response.readEntity(MAX_RESPONSE_SIZE);
+        } catch (RuntimeException e) {
+            entity = "<unreadable response: " + e.getMessage() + ">";
+        } finally {
+            response.close();
+        }
+        this.response = entity;
     }
 
     public Response.StatusType getStatusType() {
         return statusType;
     }
 
+    public int getStatus() {
+        return statusType.getStatusCode();
+    }
+
+    /**
+     * @return true if the request failed with a server error (5xx) or was rate limited (429), so it can be retried
+     */
+    public boolean isRetryable() {
+        int status = getStatus();
+        return status >= 500 || status == 429;
+    }
+
+    /**
+     * @return the response entity, truncated to {@value #MAX_RESPONSE_SIZE} bytes
+     */
     public String getResponse() {
         return response;
     }
 
     public JsonStructure getBody() {
-        return body;
+        if (body == null) {
+            return null;
+        }
+        try (JsonReader reader = Json.createReader(new ByteArrayInputStream(body.getBytes()))) {
+            return reader.read();
+        }
+    }
+
+    @Override
+    public synchronized String getMessage() {
+        if (message == null) {
+            message = "Pusher request error. " + statusType.getStatusCode() + " " + statusType.getReasonPhrase() + "\n" + response + "\nBody:\n" + body;
+        }
+        return message;
+    }
+
+    private static final class Status implements Response.StatusType, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int code;
+        private final String reasonPhrase;
+
+        Status(int code, String reasonPhrase) {
+            this.code = code;
+            this.reasonPhrase = reasonPhrase;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return code;
+        }
+
+        @Override
+        public Response.Status.Family getFamily() {
+            return Response.Status.Family.familyOf(code);
+        }
+
+        @Override
+        public String getReasonPhrase() {
+            return reasonPhrase;
+        }
     }
 
 }
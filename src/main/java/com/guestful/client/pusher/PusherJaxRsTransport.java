@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import javax.ws.rs.client.AsyncInvoker;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.InvocationCallback;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * Transport sending requests with a JAX-RS {@link Client}, i.e. to share its connection pool and configuration with the application
+ * <p>
+ * The client belongs to the caller and is left open when the transport is closed, unless it is built to own it.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class PusherJaxRsTransport implements PusherTransport {
+
+    private final Client client;
+    private final boolean closeClient;
+
+    public PusherJaxRsTransport(Client client) {
+        this(client, false);
+    }
+
+    /**
+     * @param closeClient whether {@link #close()} closes the client
+     */
+    public PusherJaxRsTransport(Client client, boolean closeClient) {
+        Prerequisites.nonNull("client", client);
+        this.client = client;
+        this.closeClient = closeClient;
+    }
+
+    public Client getClient() {
+        return client;
+    }
+
+    @Override
+    public CompletableFuture<PusherResponse> send(String method, String url, byte[] body) {
+        final CompletableFuture<PusherResponse> result = new CompletableFuture<>();
+        InvocationCallback<Response> callback = new InvocationCallback<Response>() {
+            @Override
+            public void completed(Response response) {
+                PusherResponse r = new PusherResponse(response.getStatus(), response.getStatusInfo().getReasonPhrase(), entity(response));
+                if (!result.complete(r)) {
+                    r.close();
+                }
+            }
+
+            @Override
+            public void failed(Throwable throwable) {
+                result.completeExceptionally(throwable);
+            }
+        };
+        try {
+            // the url is already encoded: it must not be parsed as a template
+            AsyncInvoker invoker = client.target(URI.create(url)).request(MediaType.APPLICATION_JSON_TYPE).async();
+            Future<Response> future = body == null ?
+                invoker.method(method, callback) :
+                invoker.method(method, Entity.entity(body, "application/json; charset=utf-8"), callback);
+            result.whenComplete((r, e) -> {
+                if (e instanceof CancellationException) {
+                    future.cancel(true);
+                }
+            });
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Closes the JAX-RS client if this transport owns it
+     */
+    @Override
+    public void close() {
+        if (closeClient) {
+            client.close();
+        }
+    }
+
+    private static InputStream entity(final Response response) {
+        if (!response.hasEntity()) {
+            response.close();
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        return new FilterInputStream(response.readEntity(InputStream.class)) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    response.close();
+                }
+            }
+        };
+    }
+
+}
@@ -0,0 +1,211 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonValue;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the members of presence channels, used by {@link PusherChannel#getMembers()} once installed with
+ * {@link Pusher#setMemberCache(PusherMemberCache)}.
+ * <p>
+ * Entries expire after a TTL and the least recently used ones are evicted past <code>maxEntries</code>. Concurrent
+ * callers missing the cache for the same channel share a single request to Pusher. Cached entries can be kept up to date
+ * from <code>member_added</code> and <code>member_removed</code> notifications instead of being fetched again. A fetched
+ * list is not cached if a notification or an invalidation for its channel arrives while it is being fetched, since it may
+ * not reflect it.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class PusherMemberCache {
+
+    private final long ttlNanos;
+    private final Map<String, Members> entries;
+    private final Map<String, Load> loading = new ConcurrentHashMap<>();
+
+    public PusherMemberCache(long ttl, TimeUnit unit, final int maxEntries) {
+        Prerequisites.nonNull("unit", unit);
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Parameter [maxEntries] must be positive");
+        }
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<String, Members>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Members> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    CompletableFuture<JsonArray> getMembers(final PusherChannel channel) {
+        final String name = channel.getName();
+        final JsonArray members = get(name);
+        if (members != null) {
+            return CompletableFuture.completedFuture(members);
+        }
+        final Load load = new Load();
+        final Load current = loading.putIfAbsent(name, load);
+        if (current != null) {
+            return current.future;
+        }
+        final CompletableFuture<JsonArray> future = load.future;
+        channel.getClient().fetchMembers(name).whenComplete((users, e) -> {
+            synchronized (entries) {
+                if (e == null && !load.stale) {
+                    put(name, users);
+                }
+                loading.remove(name, load);
+            }
+            if (e == null) {
+                future.complete(users);
+            } else {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Add a member to the cached entry of a channel, if any
+     */
+    public void memberAdded(String channel, String userId) {
+        Prerequisites.nonNull("channel", channel);
+        Prerequisites.nonNull("userId", userId);
+        synchronized (entries) {
+            changed(channel);
+            Members entry = entries.get(channel);
+            if (entry != null && !entry.isExpired() && indexOf(entry.members, userId) == -1) {
+                JsonArrayBuilder members = Json.createArrayBuilder();
+                for (JsonValue member : entry.members) {
+                    members.add(member);
+                }
+                members.add(Json.createObjectBuilder().add("id", userId));
+                entries.put(channel, new Members(members.build(), entry.expiresAt));
+            }
+        }
+    }
+
+    /**
+     * Remove a member from the cached entry of a channel, if any
+     */
+    public void memberRemoved(String channel, String userId) {
+        Prerequisites.nonNull("channel", channel);
+        Prerequisites.nonNull("userId", userId);
+        synchronized (entries) {
+            changed(channel);
+            Members entry = entries.get(channel);
+            int index = entry == null ? -1 : indexOf(entry.members, userId);
+            if (index != -1) {
+                JsonArrayBuilder members = Json.createArrayBuilder();
+                for (int i = 0; i < entry.members.size(); i++) {
+                    if (i != index) {
+                        members.add(entry.members.get(i));
+                    }
+                }
+                entries.put(channel, new Members(members.build(), entry.expiresAt));
+            }
+        }
+    }
+
+    public void invalidate(String channel) {
+        synchronized (entries) {
+            changed(channel);
+            entries.remove(channel);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            for (Load load : loading.values()) {
+                load.stale = true;
+            }
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private JsonArray get(String channel) {
+        synchronized (entries) {
+            Members entry = entries.get(channel);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.isExpired()) {
+                entries.remove(channel);
+                return null;
+            }
+            return entry.members;
+        }
+    }
+
+    private void put(String channel, JsonArray members) {
+        entries.put(channel, new Members(members, System.nanoTime() + ttlNanos));
+    }
+
+    /**
+     * The list being fetched for the channel, if any, may miss a change: it must not be cached. Called with the lock held.
+     */
+    private void changed(String channel) {
+        Load load = loading.get(channel);
+        if (load != null) {
+            load.stale = true;
+        }
+    }
+
+    private static int indexOf(JsonArray members, String userId) {
+        for (int i = 0; i < members.size(); i++) {
+            JsonValue member = members.get(i);
+            if (member instanceof JsonObject && userId.equals(((JsonObject) member).getString("id", null))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static final class Load {
+        final CompletableFuture<JsonArray> future = new CompletableFuture<>();
+        // guarded by the entries lock
+        boolean stale;
+    }
+
+    private static final class Members {
+        final JsonArray members;
+        final long expiresAt;
+
+        Members(JsonArray members, long expiresAt) {
+            this.members = members;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - expiresAt >= 0;
+        }
+    }
+
+}
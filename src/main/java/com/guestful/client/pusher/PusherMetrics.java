@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+/**
+ * Receives measurements from a {@link Pusher}. Methods are called from the threads sending requests and completing them,
+ * so they must be fast, thread-safe and must not throw. All methods do nothing by default: listeners only implement the
+ * measurements they need.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ * @see Pusher#setMetrics(PusherMetrics)
+ * @see PusherMetricsRecorder
+ */
+public interface PusherMetrics {
+
+    /**
+     * Status reported when a request failed without a response
+     */
+    int NO_STATUS = -1;
+
+    /**
+     * Called once per HTTP attempt, retries and hedged requests included
+     *
+     * @param method         the HTTP method
+     * @param path           the path of the request, relative to the application, i.e. <code>events</code> or <code>channels/presence-a/users</code>
+     * @param status         the HTTP status, or {@link #NO_STATUS}
+     * @param payloadBytes   the size of the request body
+     * @param signNanos      the time spent building and signing the request URL
+     * @param roundTripNanos the time between sending the request and receiving the response or the failure
+     */
+    default void onRequest(String method, String path, int status, int payloadBytes, long signNanos, long roundTripNanos) {
+    }
+
+    /**
+     * Called for each authentication of a private or presence channel
+     *
+     * @param channel   the authenticated channel
+     * @param signNanos the time spent building and signing the authentication string
+     */
+    default void onAuthenticate(String channel, long signNanos) {
+    }
+
+    /**
+     * Called once per channel for each event accepted for publication, before it is sent and before it is chunked
+     *
+     * @param channel   the channel the event is published on
+     * @param eventName the name of the event
+     * @param dataBytes the size of the event data in UTF-8, once escaped in the JSON body
+     * @see PusherTrafficTracker
+     */
+    default void onPublish(String channel, String eventName, int dataBytes) {
+    }
+
+    /**
+     * @return a listener forwarding the measurements to all the given ones
+     */
+    static PusherMetrics of(PusherMetrics... listeners) {
+        Prerequisites.nonNull("listeners", listeners);
+        final PusherMetrics[] all = listeners.clone();
+        return new PusherMetrics() {
+            @Override
+            public void onRequest(String method, String path, int status, int payloadBytes, long signNanos, long roundTripNanos) {
+                for (PusherMetrics listener : all) {
+                    listener.onRequest(method, path, status, payloadBytes, signNanos, roundTripNanos);
+                }
+            }
+
+            @Override
+            public void onAuthenticate(String channel, long signNanos) {
+                for (PusherMetrics listener : all) {
+                    listener.onAuthenticate(channel, signNanos);
+                }
+            }
+
+            @Override
+            public void onPublish(String channel, String eventName, int dataBytes) {
+                for (PusherMetrics listener : all) {
+                    listener.onPublish(channel, eventName, dataBytes);
+                }
+            }
+        };
+    }
+
+}
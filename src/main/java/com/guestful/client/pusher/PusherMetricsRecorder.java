@@ -0,0 +1,130 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Built-in {@link PusherMetrics} keeping round-trip histograms per endpoint, status counts and payload sizes.
+ * <p>
+ * Request paths are grouped by endpoint: <code>channels/presence-a/users</code> is recorded under <code>GET channels/{name}/users</code>.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class PusherMetricsRecorder implements PusherMetrics {
+
+    private final ConcurrentMap<String, PusherHistogram> roundTrips = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, LongAdder> statuses = new ConcurrentHashMap<>();
+    private final PusherHistogram requestSigning = new PusherHistogram();
+    private final PusherHistogram authentications = new PusherHistogram();
+    private final PusherHistogram payloads = new PusherHistogram();
+    private final LongAdder bytesSent = new LongAdder();
+
+    @Override
+    public void onRequest(String method, String path, int status, int payloadBytes, long signNanos, long roundTripNanos) {
+        getRoundTrip(method, endpoint(path)).record(roundTripNanos);
+        LongAdder counter = statuses.get(status);
+        if (counter == null) {
+            counter = statuses.computeIfAbsent(status, s -> new LongAdder());
+        }
+        counter.increment();
+        requestSigning.record(signNanos);
+        if (payloadBytes > 0) {
+            payloads.record(payloadBytes);
+            bytesSent.add(payloadBytes);
+        }
+    }
+
+    @Override
+    public void onAuthenticate(String channel, long signNanos) {
+        authentications.record(signNanos);
+    }
+
+    /**
+     * @return the round-trip times in nanoseconds of the given endpoint, i.e. <code>POST events</code>, keyed by <code>METHOD endpoint</code>
+     */
+    public Map<String, PusherHistogram> getRoundTrips() {
+        return Collections.unmodifiableMap(new TreeMap<>(roundTrips));
+    }
+
+    /**
+     * @return the number of responses per HTTP status, {@link #NO_STATUS} counting the requests which failed without response
+     */
+    public Map<Integer, Long> getStatusCounts() {
+        Map<Integer, Long> counts = new TreeMap<>();
+        statuses.forEach((status, counter) -> counts.put(status, counter.sum()));
+        return counts;
+    }
+
+    /**
+     * @return the time in nanoseconds spent signing requests
+     */
+    public PusherHistogram getRequestSigning() {
+        return requestSigning;
+    }
+
+    /**
+     * @return the time in nanoseconds spent generating channel authentications
+     */
+    public PusherHistogram getAuthentications() {
+        return authentications;
+    }
+
+    /**
+     * @return the sizes of the request bodies sent
+     */
+    public PusherHistogram getPayloads() {
+        return payloads;
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        getRoundTrips().forEach((endpoint, histogram) -> sb.append(endpoint).append(": ").append(histogram.toString(TimeUnit.MILLISECONDS)).append('\n'));
+        sb.append("statuses: ").append(getStatusCounts()).append('\n');
+        sb.append("signing: ").append(requestSigning.toString(TimeUnit.MICROSECONDS)).append('\n');
+        sb.append("authentications: ").append(authentications.toString(TimeUnit.MICROSECONDS)).append('\n');
+        sb.append("bytes sent: ").append(getBytesSent());
+        return sb.toString();
+    }
+
+    private PusherHistogram getRoundTrip(String method, String endpoint) {
+        String key = method + " " + endpoint;
+        PusherHistogram histogram = roundTrips.get(key);
+        return histogram != null ? histogram : roundTrips.computeIfAbsent(key, k -> new PusherHistogram());
+    }
+
+    static String endpoint(String path) {
+        if (path.startsWith("users/")) {
+            return "users/{id}/terminate_connections";
+        }
+        if (!path.startsWith("channels/")) {
+            return path;
+        }
+        return path.endsWith("/users") ? "channels/{name}/users" : "channels/{name}";
+    }
+
+}
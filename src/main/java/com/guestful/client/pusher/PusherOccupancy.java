@@ -0,0 +1,257 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Knows which channels have subscribers, so that events published on vacant channels are not sent, once installed with
+ * {@link Pusher#setOccupancy(PusherOccupancy)}.
+ * <p>
+ * The state of the channels is learnt from the <code>channel_occupied</code> and <code>channel_vacated</code> events of
+ * a {@link PusherWebhook} this registry listens to, and from {@link #bootstrap(Pusher, String)}: channels missing from
+ * the list of occupied channels are vacant. A state is trusted for <code>ttl</code> after it was learnt, and the state of
+ * the other channels is unknown: events are sent to them unless {@link #setPublishUnknown(boolean)} says otherwise.
+ * <p>
+ * At most <code>maxEntries</code> channels are remembered. Evicting an occupied channel forgets the bootstraps, since
+ * the channel would otherwise be considered vacant, and a bootstrap listing more channels is refused. Channels whose name starts with <code>#</code>, such as the
+ * server-to-user channels, are always published to and not counted.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class PusherOccupancy implements PusherWebhookListener {
+
+    public enum State {
+        OCCUPIED,
+        VACANT,
+        UNKNOWN
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PusherOccupancy.class.getName());
+
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final Map<String, Occupancy> entries;
+    // prefix -> time of the last bootstrap
+    private final Map<String, Long> bootstraps = new ConcurrentHashMap<>();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder skippedRequests = new LongAdder();
+    private final LongAdder unknown = new LongAdder();
+
+    private volatile boolean publishUnknown = true;
+
+    public PusherOccupancy(long ttl, TimeUnit unit, final int maxEntries) {
+        Prerequisites.nonNull("unit", unit);
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("Parameter [ttl] must be positive");
+        }
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Parameter [maxEntries] must be positive");
+        }
+        this.ttlNanos = unit.toNanos(ttl);
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Occupancy>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Occupancy> eldest) {
+                if (size() <= maxEntries) {
+                    return false;
+                }
+                if (eldest.getValue().occupied && !bootstraps.isEmpty()) {
+                    LOGGER.fine("Occupied channel " + eldest.getKey() + " evicted, forgetting the bootstraps");
+                    bootstraps.clear();
+                }
+                return true;
+            }
+        };
+    }
+
+    public boolean isPublishUnknown() {
+        return publishUnknown;
+    }
+
+    /**
+     * Whether events are sent to channels whose state is unknown (the default) or skipped like vacant ones
+     */
+    public void setPublishUnknown(boolean publishUnknown) {
+        this.publishUnknown = publishUnknown;
+    }
+
+    /**
+     * Learn the occupied channels from Pusher: the other channels starting with the prefix are vacant
+     *
+     * @param prefix the prefix of the channels to list, or <code>null</code> for all of them
+     * @return the number of occupied channels
+     * @throws IllegalStateException if there are more occupied channels than <code>maxEntries</code>: they could not all
+     *                               be remembered, so the bootstrap is not used
+     */
+    public int bootstrap(Pusher client, String prefix) throws PusherException, IllegalStateException {
+        Prerequisites.nonNull("client", client);
+        final long now = System.nanoTime();
+        final List<String> names = new ArrayList<>();
+        try (Stream<PusherChannelInfo> channels = client.getChannels(prefix)) {
+            channels.forEach(info -> names.add(info.getName()));
+        }
+        if (names.size() > maxEntries) {
+            throw new IllegalStateException(names.size() + " occupied channels" + (prefix == null ? "" : " starting with " + prefix) + " exceed the " + maxEntries + " entries of the occupancy registry");
+        }
+        synchronized (entries) {
+            // registered first, so that evicting an occupied channel while inserting the others forgets it
+            bootstraps.put(prefix == null ? "" : prefix, now);
+            for (String name : names) {
+                Occupancy entry = entries.get(name);
+                // keep the webhooks received while listing
+                if (entry == null || entry.learntAt - now < 0) {
+                    entries.put(name, new Occupancy(true, now));
+                }
+            }
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Bootstrapped " + names.size() + " occupied channels" + (prefix == null ? "" : " starting with " + prefix));
+        }
+        return names.size();
+    }
+
+    public State getState(String channel) {
+        Prerequisites.nonNull("channel", channel);
+        if (channel.startsWith("#")) {
+            return State.UNKNOWN;
+        }
+        final long now = System.nanoTime();
+        final Occupancy entry;
+        synchronized (entries) {
+            entry = entries.get(channel);
+        }
+        long learnt = entry == null ? Long.MIN_VALUE : entry.learntAt;
+        State state = entry == null ? State.UNKNOWN : entry.occupied ? State.OCCUPIED : State.VACANT;
+        for (Map.Entry<String, Long> bootstrap : bootstraps.entrySet()) {
+            // a bootstrap more recent than the entry did not list the channel
+            if (channel.startsWith(bootstrap.getKey()) && (entry == null || bootstrap.getValue() - learnt > 0)) {
+                learnt = bootstrap.getValue();
+                state = State.VACANT;
+            }
+        }
+        return state == State.UNKNOWN || now - learnt > ttlNanos ? State.UNKNOWN : state;
+    }
+
+    @Override
+    public void onChannelOccupied(PusherWebhookEvent event) {
+        update(event.getChannel(), true);
+    }
+
+    @Override
+    public void onChannelVacated(PusherWebhookEvent event) {
+        update(event.getChannel(), false);
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+        bootstraps.clear();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return the number of channels events were not sent to because they were vacant
+     */
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * @return the number of requests not sent because all their channels were vacant
+     */
+    public long getSkippedRequests() {
+        return skippedRequests.sum();
+    }
+
+    /**
+     * @return the number of channels events were published to while their state was unknown
+     */
+    public long getUnknown() {
+        return unknown.sum();
+    }
+
+    /**
+     * @return the channels to publish an event to, the given list itself if none is skipped
+     */
+    List<String> filter(List<String> channels) {
+        List<String> filtered = null;
+        for (int i = 0; i < channels.size(); i++) {
+            final String channel = channels.get(i);
+            if (channel.startsWith("#")) {
+                if (filtered != null) {
+                    filtered.add(channel);
+                }
+                continue;
+            }
+            final State state = getState(channel);
+            final boolean skip = state == State.VACANT || state == State.UNKNOWN && !publishUnknown;
+            if (state == State.UNKNOWN && !skip) {
+                unknown.increment();
+            }
+            if (skip) {
+                skipped.increment();
+                if (filtered == null) {
+                    filtered = new ArrayList<>(channels.subList(0, i));
+                }
+            } else if (filtered != null) {
+                filtered.add(channel);
+            }
+        }
+        if (filtered == null) {
+            return channels;
+        }
+        if (filtered.isEmpty()) {
+            skippedRequests.increment();
+        }
+        return filtered;
+    }
+
+    private void update(String channel, boolean occupied) {
+        if (channel != null) {
+            final Occupancy entry = new Occupancy(occupied, System.nanoTime());
+            synchronized (entries) {
+                entries.put(channel, entry);
+            }
+        }
+    }
+
+    private static final class Occupancy {
+        final boolean occupied;
+        final long learntAt;
+
+        Occupancy(boolean occupied, long learntAt) {
+            this.occupied = occupied;
+            this.learntAt = learntAt;
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonStructure;
+import javax.json.JsonValue;
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the events of each channel in the order they are submitted, from any number of threads.
+ * <p>
+ * Channels are hashed to a fixed number of stripes. The events of a stripe are sent one after the other, each one once
+ * the previous one has completed, while the stripes are sent in parallel. A failed event does not stop the following
+ * ones.
+ * <p>
+ * With a sequence field, each event of a channel is stamped with the next number of a per-channel sequence starting at 1,
+ * i.e. <code>{"seq": 42, ...}</code>, in the order the events are sent, failed ones included: a subscriber detects a
+ * missed event from a gap. The data of sequenced events must then be JSON objects. Sequences are kept for each channel
+ * until {@link #resetSequence(String)} is called.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class PusherOrderedPublisher implements Closeable {
+
+    private final Pusher client;
+    private final String sequenceField;
+    private final ExecutorService executor;
+    private final StripedExecutor stripes;
+    private final Map<String, AtomicLong> sequences = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private volatile boolean closed;
+
+    public PusherOrderedPublisher(Pusher client, int stripes) {
+        this(client, stripes, null);
+    }
+
+    /**
+     * @param stripes       the number of channel groups sent in parallel
+     * @param sequenceField the member the sequence number is stamped in, or <code>null</code> not to stamp events
+     */
+    public PusherOrderedPublisher(Pusher client, int stripes, String sequenceField) {
+        Prerequisites.nonNull("client", client);
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Parameter [stripes] must be positive");
+        }
+        this.client = client;
+        this.sequenceField = sequenceField;
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(stripes, r -> {
+            Thread t = new Thread(r, "pusher-ordered-" + client.getAppId() + "-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.stripes = new StripedExecutor(executor, stripes);
+    }
+
+    public Pusher getClient() {
+        return client;
+    }
+
+    public String getSequenceField() {
+        return sequenceField;
+    }
+
+    public CompletableFuture<Void> publish(String channel, String eventName, JsonStructure eventData) {
+        Prerequisites.nonNull("channel", channel);
+        Prerequisites.nonNull("eventName", eventName);
+        Prerequisites.nonNull("data", eventData);
+        if (sequenceField != null && eventData.getValueType() != JsonValue.ValueType.OBJECT) {
+            throw new IllegalArgumentException("Sequenced events must be JSON objects");
+        }
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        if (closed) {
+            future.completeExceptionally(new IllegalStateException("Ordered publisher is closed"));
+            return future;
+        }
+        pending.incrementAndGet();
+        try {
+            stripes.execute(channel, () -> {
+                try {
+                    final JsonStructure data = sequenceField == null ? eventData : stamp((JsonObject) eventData, nextSequence(channel));
+                    client.publish(Collections.singletonList(channel), eventName, data.toString());
+                    future.complete(null);
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    done();
+                }
+            });
+        } catch (RuntimeException e) {
+            done();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * @return the last sequence number stamped for the channel, 0 if none
+     */
+    public long getSequence(String channel) {
+        AtomicLong sequence = sequences.get(channel);
+        return sequence == null ? 0 : sequence.get();
+    }
+
+    /**
+     * Forget the sequence of a channel, i.e. when it is vacated: its next event is stamped with 1
+     */
+    public void resetSequence(String channel) {
+        sequences.remove(channel);
+    }
+
+    /**
+     * @return the number of events submitted and not completed yet
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Stops accepting events and waits for the submitted ones to complete
+     */
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (pending) {
+            while (pending.get() > 0) {
+                try {
+                    pending.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        executor.shutdown();
+    }
+
+    private long nextSequence(String channel) {
+        AtomicLong sequence = sequences.get(channel);
+        if (sequence == null) {
+            sequence = sequences.computeIfAbsent(channel, k -> new AtomicLong());
+        }
+        return sequence.incrementAndGet();
+    }
+
+    private JsonObject stamp(JsonObject data, long sequence) {
+        JsonObjectBuilder builder = Json.createObjectBuilder().add(sequenceField, sequence);
+        for (Map.Entry<String, JsonValue> member : data.entrySet()) {
+            if (!member.getKey().equals(sequenceField)) {
+                builder.add(member.getKey(), member.getValue());
+            }
+        }
+        return builder.build();
+    }
+
+    private void done() {
+        if (pending.decrementAndGet() == 0) {
+            synchronized (pending) {
+                pending.notifyAll();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import javax.json.JsonObject;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of the serialized <code>channel_data</code> of presence channel members, used by the authentication methods of
+ * {@link Pusher} once installed with {@link Pusher#setPresenceCache(PusherPresenceCache)}.
+ * <p>
+ * Entries are keyed by user id and hold the attributes they were serialized from: a cached value is reused as long as
+ * the user logs in with the same (or equal) attributes. The least recently used entries are evicted past
+ * <code>maxEntries</code>.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class PusherPresenceCache {
+
+    private final Map<String, ChannelData> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public PusherPresenceCache(final int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Parameter [maxEntries] must be positive");
+        }
+        this.entries = new LinkedHashMap<String, ChannelData>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ChannelData> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    String getChannelData(final PusherPresence user) {
+        final ChannelData entry;
+        synchronized (entries) {
+            entry = entries.get(user.getId());
+        }
+        final JsonObject attributes = user.getAttributes();
+        if (entry != null && (entry.attributes == attributes || entry.attributes.equals(attributes))) {
+            hits.increment();
+            return entry.channelData;
+        }
+        misses.increment();
+        final String channelData = user.toJson().toString();
+        synchronized (entries) {
+            entries.put(user.getId(), new ChannelData(attributes, channelData));
+        }
+        return channelData;
+    }
+
+    public void invalidate(String userId) {
+        synchronized (entries) {
+            entries.remove(userId);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    private static final class ChannelData {
+        final JsonObject attributes;
+        final String channelData;
+
+        ChannelData(JsonObject attributes, String channelData) {
+            this.attributes = attributes;
+            this.channelData = channelData;
+        }
+    }
+
+}
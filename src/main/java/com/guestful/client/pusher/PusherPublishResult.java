@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome of an event published on several channels
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PusherPublishResult {
+
+    private final List<String> published;
+    private final Map<String, RuntimeException> failures;
+
+    PusherPublishResult(List<String> published, Map<String, RuntimeException> failures) {
+        this.published = Collections.unmodifiableList(published);
+        this.failures = Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * @return the channels the event has been published on
+     */
+    public List<String> getPublished() {
+        return published;
+    }
+
+    /**
+     * @return the error which prevented the event to be published, by channel
+     */
+    public Map<String, RuntimeException> getFailures() {
+        return failures;
+    }
+
+    public boolean isSuccess() {
+        return failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "published: " + published.size() + ", failed: " + failures.size();
+    }
+}
@@ -0,0 +1,329 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Limits the rate of the requests sent to a Pusher application, with one queue per {@link PusherPriority}.
+ * <p>
+ * The token bucket lets <code>burst</code> requests through at once and then <code>rate</code> requests per second. It is
+ * implemented as a virtual scheduling clock updated with a single compare-and-set, so publishing threads never lock.
+ * A request is sent from the calling thread when a token is available and nothing is queued. Otherwise it waits in the
+ * queue of its priority until a dispatching thread takes it, higher priorities first.
+ * <p>
+ * Each queue holds at most <code>queueCapacity</code> requests. When full, the {@link PusherBackpressure} policy applies:
+ * the caller waits, the new request is refused, or the oldest queued request of the lane is dropped. Refused and dropped
+ * requests complete with a {@link RejectedExecutionException}.
+ * <p>
+ * When Pusher answers 429, the rate is halved, at most once per second and down to 1/64 of the configured rate. It then
+ * grows back additively with each successful request.
+ * <p>
+ * Queued requests are sent from threads of the rate limiter, so a request waiting on the in-flight limit never delays the
+ * next ones. A rate limiter installed on a {@link Pusher} is closed with it.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ * @see Pusher#setRateLimiter(PusherRateLimiter)
+ */
+public class PusherRateLimiter implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(PusherRateLimiter.class.getName());
+    private static final long SLOWDOWN_COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MAX_SLOWDOWN = 64;
+    private static final int RECOVERY_STEPS = 32;
+
+    private final long baseIntervalNanos;
+    private final int burst;
+    private final PusherBackpressure backpressure;
+    private final Lane[] lanes;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong clock;
+    private final AtomicLong intervalNanos;
+    private final AtomicLong lastSlowdown = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final Thread dispatcher;
+    private final ExecutorService executor;
+
+    private volatile boolean closed;
+
+    /**
+     * @param rate          the number of requests per second
+     * @param burst         the number of requests which can be sent at once after a quiet period
+     * @param queueCapacity the maximum number of requests waiting in each lane
+     * @param backpressure  what to do when a lane is full
+     */
+    public PusherRateLimiter(double rate, int burst, int queueCapacity, PusherBackpressure backpressure) {
+        Prerequisites.nonNull("backpressure", backpressure);
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Parameter [rate] must be positive");
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("Parameter [burst] must be positive");
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Parameter [queueCapacity] must be positive");
+        }
+        this.baseIntervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+        this.burst = burst;
+        this.backpressure = backpressure;
+        this.intervalNanos = new AtomicLong(baseIntervalNanos);
+        this.clock = new AtomicLong(System.nanoTime());
+        this.lanes = new Lane[PusherPriority.values().length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(queueCapacity);
+        }
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "pusher-rate-limited-" + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.dispatcher = new Thread(this::dispatch, "pusher-rate-limiter");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * @return the current rate in requests per second, lower than the configured one after 429 responses
+     */
+    public double getRate() {
+        return (double) TimeUnit.SECONDS.toNanos(1) / intervalNanos.get();
+    }
+
+    public int getQueued(PusherPriority priority) {
+        return lanes[priority.ordinal()].queue.size();
+    }
+
+    /**
+     * @return the number of requests refused or dropped because their lane was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of 429 responses observed
+     */
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    /**
+     * Stops the dispatching thread. Queued requests are rejected, and so are the ones submitted afterwards.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(dispatcher);
+        executor.shutdown();
+    }
+
+    /**
+     * Run the task when the rate allows it, or complete the result exceptionally if it is refused or dropped
+     */
+    void submit(PusherPriority priority, Runnable task, CompletableFuture<?> result) {
+        if (closed) {
+            result.completeExceptionally(new RejectedExecutionException("Rate limiter is closed"));
+            return;
+        }
+        if (queued.get() == 0 && acquire() == 0) {
+            task.run();
+            return;
+        }
+        final Lane lane = lanes[priority.ordinal()];
+        if (!reserve(lane, priority, result)) {
+            return;
+        }
+        lane.queue.add(new Pending(task, result));
+        queued.incrementAndGet();
+        if (closed) {
+            // the dispatcher may have drained the lanes before the request was queued
+            reject();
+        } else {
+            LockSupport.unpark(dispatcher);
+        }
+    }
+
+    void onSuccess() {
+        long interval;
+        long next;
+        do {
+            interval = intervalNanos.get();
+            if (interval <= baseIntervalNanos) {
+                return;
+            }
+            // additive increase of the rate
+            double rate = 1D / interval + 1D / (baseIntervalNanos * (double) RECOVERY_STEPS);
+            next = Math.max(baseIntervalNanos, (long) (1 / rate));
+        } while (!intervalNanos.compareAndSet(interval, next));
+    }
+
+    void onThrottled() {
+        throttled.increment();
+        long now = System.nanoTime();
+        long last = lastSlowdown.get();
+        if (now - last >= SLOWDOWN_COOLDOWN_NANOS && lastSlowdown.compareAndSet(last, now)) {
+            long interval = intervalNanos.updateAndGet(i -> Math.min(i * 2, baseIntervalNanos * MAX_SLOWDOWN));
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Pusher rate limited, slowing down to " + (TimeUnit.SECONDS.toNanos(1) / interval) + " requests per second");
+            }
+        }
+    }
+
+    /**
+     * Take a token
+     *
+     * @return 0 if a token was taken, or the time to wait for the next one
+     */
+    long acquire() {
+        final long now = System.nanoTime();
+        while (true) {
+            final long interval = intervalNanos.get();
+            final long current = clock.get();
+            final long start = current - now > 0 ? current : now;
+            final long wait = start - interval * (burst - 1) - now;
+            if (wait > 0) {
+                return wait;
+            }
+            if (clock.compareAndSet(current, start + interval)) {
+                return 0;
+            }
+        }
+    }
+
+    private boolean reserve(Lane lane, PusherPriority priority, CompletableFuture<?> result) {
+        while (!lane.slots.tryAcquire()) {
+            switch (backpressure) {
+                case BLOCK:
+                    try {
+                        lane.slots.acquire();
+                        return true;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        result.completeExceptionally(new RejectedExecutionException("Interrupted while waiting for the " + priority + " lane", e));
+                        return false;
+                    }
+                case FAIL_FAST:
+                    dropped.increment();
+                    result.completeExceptionally(new RejectedExecutionException("The " + priority + " lane of the rate limiter is full"));
+                    return false;
+                default:
+                    Pending oldest = lane.queue.poll();
+                    if (oldest != null) {
+                        // its slot is given to the new request
+                        queued.decrementAndGet();
+                        dropped.increment();
+                        oldest.result.completeExceptionally(new RejectedExecutionException("Dropped from the " + priority + " lane of the rate limiter"));
+                        return true;
+                    }
+            }
+        }
+        return true;
+    }
+
+    private void dispatch() {
+        while (!closed) {
+            Lane lane = null;
+            for (Lane l : lanes) {
+                if (!l.queue.isEmpty()) {
+                    lane = l;
+                    break;
+                }
+            }
+            if (lane == null) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                continue;
+            }
+            long wait = acquire();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            // a request of a higher priority may have arrived while waiting
+            Pending pending = null;
+            for (Lane l : lanes) {
+                pending = l.queue.poll();
+                if (pending != null) {
+                    l.slots.release();
+                    queued.decrementAndGet();
+                    break;
+                }
+            }
+            if (pending != null && !pending.result.isDone()) {
+                final Pending p = pending;
+                try {
+                    // sending may block: the dispatcher keeps pacing the other requests meanwhile
+                    executor.execute(() -> {
+                        try {
+                            p.task.run();
+                        } catch (RuntimeException e) {
+                            p.result.completeExceptionally(e);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    p.result.completeExceptionally(new RejectedExecutionException("Rate limiter is closed", e));
+                }
+            }
+        }
+        reject();
+    }
+
+    private void reject() {
+        for (Lane l : lanes) {
+            Pending pending;
+            while ((pending = l.queue.poll()) != null) {
+                l.slots.release();
+                queued.decrementAndGet();
+                pending.result.completeExceptionally(new RejectedExecutionException("Rate limiter is closed"));
+            }
+        }
+    }
+
+    private static final class Lane {
+        final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+        final Semaphore slots;
+
+        Lane(int capacity) {
+            this.slots = new Semaphore(capacity);
+        }
+    }
+
+    private static final class Pending {
+        final Runnable task;
+        final CompletableFuture<?> result;
+
+        Pending(Runnable task, CompletableFuture<?> result) {
+            this.task = task;
+            this.result = result;
+        }
+    }
+
+}
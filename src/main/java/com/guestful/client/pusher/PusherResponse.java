@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HTTP response received by a {@link PusherTransport}. The entity must be read or the response closed to release the connection.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PusherResponse implements Closeable {
+
+    private final int status;
+    private final String reasonPhrase;
+    private final InputStream entity;
+    private final boolean sent;
+
+    /**
+     * @param entity the response body, closing it releases the connection
+     */
+    public PusherResponse(int status, String reasonPhrase, InputStream entity) {
+        this(status, reasonPhrase, entity, true);
+    }
+
+    private PusherResponse(int status, String reasonPhrase, InputStream entity, boolean sent) {
+        Prerequisites.nonNull("entity", entity);
+        this.status = status;
+        this.reasonPhrase = reasonPhrase == null ? "" : reasonPhrase;
+        this.entity = entity;
+        this.sent = sent;
+    }
+
+    /**
+     * Response of a request which was not sent but kept for later, i.e. in a spool
+     */
+    static PusherResponse accepted() {
+        return new PusherResponse(202, "Accepted", new ByteArrayInputStream(new byte[0]), false);
+    }
+
+    /**
+     * Response of a request which was not sent because the client is disabled
+     */
+    static PusherResponse ok() {
+        return new PusherResponse(200, "OK", new ByteArrayInputStream(new byte[0]), false);
+    }
+
+    /**
+     * @return false if the request was not sent to Pusher, i.e. because it was spooled or the client is disabled
+     */
+    boolean isSent() {
+        return sent;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getReasonPhrase() {
+        return reasonPhrase;
+    }
+
+    public InputStream getEntity() {
+        return entity;
+    }
+
+    /**
+     * Read the entity as an UTF-8 string and close the response
+     */
+    public String readEntity() {
+        return readEntity(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Read at most <code>maxBytes</code> of the entity as an UTF-8 string and close the response
+     */
+    String readEntity(int maxBytes) {
+        try (InputStream in = entity) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while (out.size() < maxBytes && (n = in.read(buffer, 0, Math.min(buffer.length, maxBytes - out.size()))) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            entity.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public String toString() {
+        return status + " " + reasonPhrase;
+    }
+
+}
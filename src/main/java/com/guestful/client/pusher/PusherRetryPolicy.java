@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exponential backoff with jitter between the attempts of a failed request.
+ * <p>
+ * The backoff before attempt <code>n + 1</code> is picked at random between half and all of
+ * <code>min(maxBackoff, initialBackoff * 2^(n - 1))</code>.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ * @see Pusher#setRetryPolicy(PusherRetryPolicy)
+ */
+public final class PusherRetryPolicy {
+
+    /**
+     * Requests are attempted only once
+     */
+    public static final PusherRetryPolicy NONE = new PusherRetryPolicy(1, 0, 0, TimeUnit.MILLISECONDS);
+
+    private final int maxAttempts;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+
+    /**
+     * @param maxAttempts    the maximum number of attempts of a request, the first one included
+     * @param initialBackoff the backoff before the first retry
+     * @param maxBackoff     the maximum backoff between two attempts
+     */
+    public PusherRetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, TimeUnit unit) {
+        Prerequisites.nonNull("unit", unit);
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("Parameter [maxAttempts] must be positive");
+        }
+        if (initialBackoff < 0 || maxBackoff < initialBackoff) {
+            throw new IllegalArgumentException("Parameters [initialBackoff] and [maxBackoff] must verify 0 <= initialBackoff <= maxBackoff");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffNanos = unit.toNanos(initialBackoff);
+        this.maxBackoffNanos = unit.toNanos(maxBackoff);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param attempt the number of attempts already done
+     * @return the time to wait before the next attempt
+     */
+    public long getBackoff(int attempt, TimeUnit unit) {
+        long backoff = initialBackoffNanos;
+        for (int i = 1; i < attempt && backoff < maxBackoffNanos; i++) {
+            backoff <<= 1;
+        }
+        backoff = Math.min(backoff, maxBackoffNanos);
+        long half = backoff >>> 1;
+        return unit.convert(half + ThreadLocalRandom.current().nextLong(backoff - half + 1), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        return "maxAttempts: " + maxAttempts + ", backoff: " + TimeUnit.NANOSECONDS.toMillis(initialBackoffNanos) + "-" + TimeUnit.NANOSECONDS.toMillis(maxBackoffNanos) + "ms";
+    }
+}
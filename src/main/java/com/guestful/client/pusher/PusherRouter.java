@@ -0,0 +1,250 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import javax.json.JsonStructure;
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Spreads channels over several Pusher applications to scale past the message and connection limits of a single one.
+ * <p>
+ * Channels are mapped to applications with consistent hashing: each application owns a number of points on a hash ring
+ * proportional to its weight and a channel belongs to the application owning the next point after the hash of its name.
+ * Adding an application only moves the channels falling on its points, about <code>weight / total weight</code> of them.
+ * Browsers subscribed to a moved channel must reconnect with the key given by {@link #getKey(String)}.
+ * <p>
+ * Lookups read an immutable snapshot of the ring and never lock.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class PusherRouter implements Closeable {
+
+    /**
+     * Points on the ring for a weight of 1
+     */
+    static final int POINTS_PER_WEIGHT = 160;
+
+    private final Map<String, Shard> shards = new LinkedHashMap<>();
+    private volatile Ring ring = new Ring(new long[0], new Pusher[0]);
+
+    public PusherRouter() {
+    }
+
+    public PusherRouter(Collection<Pusher> apps) {
+        for (Pusher app : apps) {
+            addApp(app, 1);
+        }
+    }
+
+    /**
+     * Add an application, or change its weight, and rebalance the channels
+     *
+     * @param weight the share of the channels this application receives relatively to the others
+     */
+    public synchronized PusherRouter addApp(Pusher app, int weight) {
+        Prerequisites.nonNull("app", app);
+        if (weight < 1) {
+            throw new IllegalArgumentException("Parameter [weight] must be positive");
+        }
+        shards.put(app.getAppId(), new Shard(app, weight));
+        rebuild();
+        return this;
+    }
+
+    /**
+     * Remove an application: its channels are spread over the remaining ones
+     *
+     * @return the removed application, or <code>null</code>
+     */
+    public synchronized Pusher removeApp(String appId) {
+        Shard shard = shards.remove(appId);
+        if (shard != null) {
+            rebuild();
+        }
+        return shard == null ? null : shard.app;
+    }
+
+    public synchronized List<Pusher> getApps() {
+        List<Pusher> apps = new ArrayList<>(shards.size());
+        for (Shard shard : shards.values()) {
+            apps.add(shard.app);
+        }
+        return Collections.unmodifiableList(apps);
+    }
+
+    /**
+     * @return the application owning the channel
+     * @throws IllegalStateException if the router has no application
+     */
+    public Pusher getApp(String channel) {
+        Prerequisites.nonNull("channel", channel);
+        return ring.get(hash(channel));
+    }
+
+    /**
+     * @return the key of the application a browser must connect to in order to subscribe to the channel
+     */
+    public String getKey(String channel) {
+        return getApp(channel).getKey();
+    }
+
+    public PusherChannel getChannel(String name) {
+        return getApp(name).getChannel(name);
+    }
+
+    public PusherAuth authenticate(String socketId, String channel) {
+        return getApp(channel).authenticate(socketId, channel);
+    }
+
+    public PusherAuth authenticate(String socketId, String channel, PusherPresence user) {
+        return getApp(channel).authenticate(socketId, channel, user);
+    }
+
+    public void publish(String channel, String eventName, JsonStructure eventData) throws PusherException {
+        getChannel(channel).publish(eventName, eventData);
+    }
+
+    public PusherPublishResult publish(Collection<String> channels, String eventName, JsonStructure eventData) {
+        return publishAsync(channels, eventName, eventData).join();
+    }
+
+    /**
+     * Publish an event on channels owned by any number of applications. The channels are grouped by application and the
+     * groups are sent in parallel. The returned future never completes exceptionally: failures are reported by channel in the result.
+     */
+    public CompletableFuture<PusherPublishResult> publishAsync(Collection<String> channels, String eventName, JsonStructure eventData) {
+        Prerequisites.nonNull("channels", channels);
+        Prerequisites.nonNull("eventName", eventName);
+        Prerequisites.nonNull("data", eventData);
+        final Ring ring = this.ring;
+        final Map<Pusher, List<String>> groups = new LinkedHashMap<>();
+        for (String channel : new LinkedHashSet<>(channels)) {
+            groups.computeIfAbsent(ring.get(hash(channel)), app -> new ArrayList<>()).add(channel);
+        }
+        final List<CompletableFuture<PusherPublishResult>> futures = new ArrayList<>(groups.size());
+        for (Map.Entry<Pusher, List<String>> group : groups.entrySet()) {
+            futures.add(group.getKey().publishAsync(group.getValue(), eventName, eventData));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenApply(v -> {
+            final List<String> published = new ArrayList<>();
+            final Map<String, RuntimeException> failures = new LinkedHashMap<>();
+            for (CompletableFuture<PusherPublishResult> future : futures) {
+                PusherPublishResult result = future.join();
+                published.addAll(result.getPublished());
+                failures.putAll(result.getFailures());
+            }
+            return new PusherPublishResult(published, failures);
+        });
+    }
+
+    /**
+     * Close all the applications
+     */
+    @Override
+    public synchronized void close() {
+        for (Shard shard : shards.values()) {
+            shard.app.close();
+        }
+    }
+
+    private void rebuild() {
+        int points = 0;
+        for (Shard shard : shards.values()) {
+            points += shard.weight * POINTS_PER_WEIGHT;
+        }
+        final long[] hashes = new long[points];
+        final Pusher[] owners = new Pusher[points];
+        int i = 0;
+        for (Shard shard : shards.values()) {
+            for (int p = 0; p < shard.weight * POINTS_PER_WEIGHT; p++) {
+                hashes[i] = hash(shard.app.getAppId() + "#" + p);
+                owners[i++] = shard.app;
+            }
+        }
+        // sort the points by hash, keeping owners aligned
+        final Integer[] order = new Integer[points];
+        for (int j = 0; j < points; j++) {
+            order[j] = j;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(hashes[a], hashes[b]));
+        final long[] sortedHashes = new long[points];
+        final Pusher[] sortedOwners = new Pusher[points];
+        for (int j = 0; j < points; j++) {
+            sortedHashes[j] = hashes[order[j]];
+            sortedOwners[j] = owners[order[j]];
+        }
+        ring = new Ring(sortedHashes, sortedOwners);
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes, followed by the MurmurHash3 finalizer to spread similar names
+     */
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static final class Shard {
+        final Pusher app;
+        final int weight;
+
+        Shard(Pusher app, int weight) {
+            this.app = app;
+            this.weight = weight;
+        }
+    }
+
+    private static final class Ring {
+        final long[] hashes;
+        final Pusher[] owners;
+
+        Ring(long[] hashes, Pusher[] owners) {
+            this.hashes = hashes;
+            this.owners = owners;
+        }
+
+        Pusher get(long hash) {
+            if (owners.length == 0) {
+                throw new IllegalStateException("No Pusher application configured");
+            }
+            int i = Arrays.binarySearch(hashes, hash);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return owners[i == owners.length ? 0 : i];
+        }
+    }
+
+}
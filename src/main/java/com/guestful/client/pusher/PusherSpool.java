@@ -0,0 +1,510 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.core.MultivaluedHashMap;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of the events which could not be sent to Pusher, replayed in order once Pusher is reachable again.
+ * <p>
+ * Events are appended to memory-mapped segment files of <code>segmentSize</code> bytes in a local directory, so a backlog
+ * does not grow the heap. When the last segment is full a new one is created, up to <code>maxSegments</code>: past this
+ * size events are refused and counted as dropped. Segments fully replayed are deleted by {@link #compact()}, and the
+ * replay position is kept in a cursor file so the backlog survives a restart of the application.
+ * <p>
+ * Once installed with {@link Pusher#setSpool(PusherSpool)}, events published while the client is disabled or failing
+ * after retries with a 5xx, a 429, a connection error or an open circuit breaker are spooled instead, and a background
+ * thread replays them at most <code>maxEventsPerSecond</code>. Events published while a backlog exists are still sent
+ * directly, so they may reach Pusher before the spooled ones. Replay is at-least-once: an event sent right before the
+ * application stops may be sent again on the next start.
+ * <p>
+ * Writes survive a crash of the JVM but not of the operating system: call {@link #force()} to flush segments to disk.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class PusherSpool implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(PusherSpool.class.getName());
+    private static final Pattern SEGMENT_NAME = Pattern.compile("spool-(\\d+)\\.log");
+    private static final String CURSOR_NAME = "spool.cursor";
+    // record length, crc32 of path and body, path length
+    private static final int RECORD_HEADER = 4 + 4 + 2;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final long drainIntervalNanos;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final FileChannel cursorChannel;
+    private final MappedByteBuffer cursor;
+
+    private int readPosition;
+    private long backlog;
+    private long backlogBytes;
+    private long dropped;
+    private long drained;
+    private Thread drainer;
+    private volatile boolean closed;
+
+    public PusherSpool(Path directory, int segmentSize, int maxSegments, int maxEventsPerSecond) throws IOException {
+        Prerequisites.nonNull("directory", directory);
+        if (segmentSize < 1024) {
+            throw new IllegalArgumentException("Parameter [segmentSize] must be at least 1024 bytes");
+        }
+        if (maxSegments < 1) {
+            throw new IllegalArgumentException("Parameter [maxSegments] must be positive");
+        }
+        if (maxEventsPerSecond < 1) {
+            throw new IllegalArgumentException("Parameter [maxEventsPerSecond] must be positive");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.drainIntervalNanos = TimeUnit.SECONDS.toNanos(1) / maxEventsPerSecond;
+        this.cursorChannel = FileChannel.open(directory.resolve(CURSOR_NAME), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.cursor = cursorChannel.map(FileChannel.MapMode.READ_WRITE, 0, 8 + 4);
+        recover();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the number of events waiting to be replayed
+     */
+    public synchronized long getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * @return the size of the events waiting to be replayed, in bytes
+     */
+    public synchronized long getBacklogBytes() {
+        return backlogBytes;
+    }
+
+    /**
+     * @return the number of events refused because the spool was full
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return the number of events replayed since the spool was opened
+     */
+    public synchronized long getDrained() {
+        return drained;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Append an event body to the journal
+     *
+     * @return false if the spool is full or closed
+     */
+    synchronized boolean append(String path, RequestBody body) {
+        if (closed) {
+            return false;
+        }
+        final byte[] p = path.getBytes(StandardCharsets.UTF_8);
+        final byte[] b = body.getBytes();
+        final int length = RECORD_HEADER + p.length + b.length;
+        Segment tail = segments.peekLast();
+        // keep 4 zero bytes after the last record to mark the end of the segment
+        if (tail != null && tail.writePosition + length + 4 > segmentSize && segments.size() >= maxSegments) {
+            // reclaim the replayed segments before refusing
+            compact();
+            rewind();
+            tail = segments.peekLast();
+        }
+        if (tail == null || tail.writePosition + length + 4 > segmentSize) {
+            if (segments.size() >= maxSegments || length + 4 > segmentSize) {
+                dropped++;
+                return false;
+            }
+            try {
+                tail = new Segment(tail == null ? readSegmentId() : tail.id + 1);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to create spool segment in " + directory, e);
+                dropped++;
+                return false;
+            }
+            segments.addLast(tail);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(p);
+        crc.update(b);
+        final ByteBuffer buffer = tail.buffer.duplicate();
+        buffer.position(tail.writePosition + 4);
+        buffer.putInt((int) crc.getValue()).putShort((short) p.length).put(p).put(b);
+        // the length is written last so a partially written record is never read
+        tail.buffer.putInt(tail.writePosition, length);
+        tail.writePosition += length;
+        tail.pending++;
+        tail.pendingBytes += length;
+        backlog++;
+        backlogBytes += length;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Flush the segments and the replay position to disk
+     */
+    public synchronized void force() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        cursor.force();
+    }
+
+    /**
+     * Delete the segments which have been fully replayed
+     */
+    public synchronized void compact() {
+        while (segments.size() > 1) {
+            Segment head = segments.peekFirst();
+            if (readPosition < head.writePosition || head.buffer.getInt(readPosition) != 0) {
+                return;
+            }
+            segments.removeFirst().delete();
+            readPosition = 0;
+            saveCursor();
+        }
+    }
+
+    /**
+     * Reuse the only segment from its start once it has been fully replayed
+     */
+    private void rewind() {
+        Segment head = segments.peekFirst();
+        if (segments.size() != 1 || head.pending > 0) {
+            return;
+        }
+        // clear the old records so none is read after the new ones
+        for (int i = 0, n = Math.min(head.writePosition + 4, segmentSize); i < n; i++) {
+            head.buffer.put(i, (byte) 0);
+        }
+        head.writePosition = 0;
+        readPosition = 0;
+        saveCursor();
+    }
+
+    /**
+     * Start replaying the journal through the given client
+     */
+    synchronized void start(final Pusher client) {
+        if (drainer != null) {
+            throw new IllegalStateException("Spool " + directory + " is already drained by another client");
+        }
+        drainer = new Thread(() -> drain(client), "pusher-spool-" + client.getAppId());
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Stop the replay and release the segments. The backlog is kept on disk.
+     */
+    @Override
+    public void close() throws IOException {
+        Thread t;
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+            t = drainer;
+        }
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            force();
+            for (Segment segment : segments) {
+                segment.channel.close();
+            }
+            segments.clear();
+            cursorChannel.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return directory + " (backlog: " + getBacklog() + ")";
+    }
+
+    private void drain(Pusher client) {
+        long backoff = 0;
+        while (!closed) {
+            try {
+                Record record = next();
+                if (record == null) {
+                    continue;
+                }
+                PusherCircuitBreaker breaker = client.getCircuitBreaker();
+                if (!client.isEnabled() || breaker != null && breaker.getState() == PusherCircuitBreaker.State.OPEN) {
+                    TimeUnit.SECONDS.sleep(1);
+                    continue;
+                }
+                long start = System.nanoTime();
+                try {
+                    PusherResponse response = client.requestAsync(HttpMethod.POST, record.path, record.body, new MultivaluedHashMap<>(), client.getRequestTimeout(TimeUnit.NANOSECONDS), false).get();
+                    response.close();
+                    if (!response.isSent()) {
+                        // the client was disabled in the meantime: keep the record
+                        TimeUnit.SECONDS.sleep(1);
+                        continue;
+                    }
+                    commit(record);
+                    backoff = 0;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof PusherException && !((PusherException) cause).isRetryable()) {
+                        // will never be accepted: skip it instead of blocking the journal
+                        LOGGER.log(Level.WARNING, "Dropping spooled event rejected by Pusher: " + cause.getMessage());
+                        commit(record);
+                    } else {
+                        backoff = Math.min(Math.max(backoff * 2, TimeUnit.MILLISECONDS.toNanos(500)), TimeUnit.SECONDS.toNanos(30));
+                        if (LOGGER.isLoggable(Level.FINE)) {
+                            LOGGER.fine("Spool replay failed, retrying in " + TimeUnit.NANOSECONDS.toMillis(backoff) + "ms: " + cause);
+                        }
+                        TimeUnit.NANOSECONDS.sleep(backoff);
+                        continue;
+                    }
+                }
+                long pause = drainIntervalNanos - (System.nanoTime() - start);
+                if (pause > 0) {
+                    TimeUnit.NANOSECONDS.sleep(pause);
+                }
+            } catch (InterruptedException e) {
+                if (!closed) {
+                    LOGGER.warning("Spool replay interrupted");
+                }
+                return;
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Spool replay error", e);
+            }
+        }
+    }
+
+    /**
+     * @return the next record to replay, or null if none became available within a second
+     */
+    private synchronized Record next() throws InterruptedException {
+        Record record = peek();
+        if (record == null && !closed) {
+            wait(1000);
+            record = peek();
+        }
+        return record;
+    }
+
+    private Record peek() {
+        while (!segments.isEmpty()) {
+            Segment head = segments.peekFirst();
+            int length = readPosition + 4 <= segmentSize ? head.buffer.getInt(readPosition) : 0;
+            if (length == 0) {
+                if (segments.size() == 1) {
+                    return null;
+                }
+                // the writer moved to the next segment
+                compact();
+                continue;
+            }
+            Record record = read(head, length);
+            if (record != null) {
+                return record;
+            }
+            LOGGER.warning("Corrupted record in spool segment " + head.file + " at position " + readPosition + ", skipping the rest of the segment");
+            discard(head);
+            head.writePosition = readPosition;
+            head.buffer.putInt(readPosition, 0);
+            if (segments.size() == 1) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the record at the read position, or null if it is corrupted
+     */
+    private Record read(Segment head, int length) {
+        if (length < RECORD_HEADER || length > head.writePosition - readPosition) {
+            return null;
+        }
+        ByteBuffer buffer = head.buffer.duplicate();
+        buffer.position(readPosition + 4);
+        int crc = buffer.getInt();
+        int pathLength = buffer.getShort();
+        if (pathLength < 0 || RECORD_HEADER + pathLength > length) {
+            return null;
+        }
+        byte[] path = new byte[pathLength];
+        byte[] body = new byte[length - RECORD_HEADER - pathLength];
+        buffer.get(path).get(body);
+        CRC32 check = new CRC32();
+        check.update(path);
+        check.update(body);
+        if ((int) check.getValue() != crc) {
+            return null;
+        }
+        return new Record(new String(path, StandardCharsets.UTF_8), RequestBody.of(body), length);
+    }
+
+    /**
+     * Count the records left to replay in the segment out of the backlog
+     */
+    private void discard(Segment segment) {
+        backlog -= segment.pending;
+        backlogBytes -= segment.pendingBytes;
+        dropped += segment.pending;
+        segment.pending = 0;
+        segment.pendingBytes = 0;
+    }
+
+    private synchronized void commit(Record record) {
+        readPosition += record.length;
+        saveCursor();
+        Segment head = segments.peekFirst();
+        head.pending--;
+        head.pendingBytes -= record.length;
+        backlog--;
+        backlogBytes -= record.length;
+        drained++;
+    }
+
+    private long readSegmentId() {
+        return segments.isEmpty() ? cursor.getLong(0) : segments.peekFirst().id;
+    }
+
+    private void saveCursor() {
+        cursor.putLong(0, readSegmentId());
+        cursor.putInt(8, readPosition);
+    }
+
+    private void recover() throws IOException {
+        final long cursorSegment = cursor.getLong(0);
+        final List<Long> ids = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "spool-*.log")) {
+            for (Path file : files) {
+                Matcher m = SEGMENT_NAME.matcher(file.getFileName().toString());
+                if (m.matches()) {
+                    ids.add(Long.parseLong(m.group(1)));
+                }
+            }
+        }
+        Collections.sort(ids);
+        for (long id : ids) {
+            Segment segment = new Segment(id);
+            if (id < cursorSegment) {
+                segment.delete();
+                continue;
+            }
+            // find the end of the written records
+            int position = 0;
+            int length;
+            while (position + 4 <= segmentSize && (length = segment.buffer.getInt(position)) > 0 && position + length <= segmentSize) {
+                if (id > cursorSegment || position >= cursor.getInt(8)) {
+                    segment.pending++;
+                    segment.pendingBytes += length;
+                }
+                position += length;
+            }
+            segment.writePosition = position;
+            segments.addLast(segment);
+            backlog += segment.pending;
+            backlogBytes += segment.pendingBytes;
+        }
+        readPosition = !segments.isEmpty() && segments.peekFirst().id == cursorSegment ? cursor.getInt(8) : 0;
+        saveCursor();
+        if (backlog > 0) {
+            LOGGER.info("Recovered " + backlog + " spooled events from " + directory);
+        }
+    }
+
+    private final class Segment {
+        final long id;
+        final Path file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int writePosition;
+        // records not replayed yet
+        long pending;
+        long pendingBytes;
+
+        Segment(long id) throws IOException {
+            this.id = id;
+            this.file = directory.resolve("spool-" + id + ".log");
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+
+        void delete() {
+            try {
+                channel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to delete spool segment " + file, e);
+            }
+        }
+    }
+
+    private static final class Record {
+        final String path;
+        final RequestBody body;
+        final int length;
+
+        Record(String path, RequestBody body, int length) {
+            this.path = path;
+            this.body = body;
+            this.length = length;
+        }
+    }
+
+}
@@ -0,0 +1,442 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+/**
+ * Tracks the channels and event names publishing the most messages and bytes, in a fixed amount of memory whatever the
+ * number of distinct channels.
+ * <p>
+ * The window is divided in {@value #SLOTS} slots, each one recycled when its time comes again. In each slot, names are
+ * hashed to {@value #STRIPES} stripes, each one with its own lock and a space-saving summary keeping its <code>2 k</code>
+ * heaviest candidates, and a lock-free count-min sketch estimates the volume of any name. The top <code>k</code> of the
+ * window are the candidates of its slots ranked by the sum of their estimates, which may exceed the exact volume but never
+ * falls short of it. A message is counted for each channel an event is published on.
+ * <p>
+ * Install it with {@link Pusher#setMetrics(PusherMetrics)}, combined with other listeners with {@link PusherMetrics#of(PusherMetrics...)}.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class PusherTrafficTracker implements PusherMetrics {
+
+    static final int SLOTS = 6;
+    static final int STRIPES = 4;
+
+    private final int k;
+    private final long slotNanos;
+    private final int mask;
+    private final long origin = System.nanoTime();
+    private final Slot[] slots = new Slot[SLOTS];
+
+    /**
+     * @param k      the number of channels and event names to report
+     * @param window the duration over which the volumes are measured
+     */
+    public PusherTrafficTracker(int k, long window, TimeUnit unit) {
+        Prerequisites.nonNull("unit", unit);
+        if (k < 1) {
+            throw new IllegalArgumentException("Parameter [k] must be positive");
+        }
+        if (window <= 0) {
+            throw new IllegalArgumentException("Parameter [window] must be positive");
+        }
+        this.k = k;
+        this.slotNanos = Math.max(1, unit.toNanos(window) / SLOTS);
+        // a sketch wide enough for its error to stay well below the volume of the k-th name
+        final int width = Integer.highestOneBit(Math.max(256, k * 64) - 1) << 1;
+        this.mask = width - 1;
+        for (int i = 0; i < SLOTS; i++) {
+            slots[i] = new Slot(k * 2, width);
+        }
+    }
+
+    @Override
+    public void onPublish(String channel, String eventName, int dataBytes) {
+        final Slot slot = slot(epoch());
+        slot.channels.add(channel, dataBytes);
+        slot.events.add(eventName, dataBytes);
+    }
+
+    public List<HeavyHitter> getTopChannelsByMessages() {
+        return top(s -> s.channels, false);
+    }
+
+    public List<HeavyHitter> getTopChannelsByBytes() {
+        return top(s -> s.channels, true);
+    }
+
+    public List<HeavyHitter> getTopEventsByMessages() {
+        return top(s -> s.events, false);
+    }
+
+    public List<HeavyHitter> getTopEventsByBytes() {
+        return top(s -> s.events, true);
+    }
+
+    public void reset() {
+        for (Slot slot : slots) {
+            synchronized (slot) {
+                slot.clear();
+                slot.epoch = -1;
+            }
+        }
+    }
+
+    /**
+     * @return the top channels and event names, i.e. <code>{"channels": {"messages": [{"name": "a", "value": 12}], "bytes": [...]}, "events": {...}}</code>
+     */
+    public JsonObject toJson() {
+        return Json.createObjectBuilder()
+            .add("channels", Json.createObjectBuilder()
+                .add("messages", toJson(getTopChannelsByMessages()))
+                .add("bytes", toJson(getTopChannelsByBytes())))
+            .add("events", Json.createObjectBuilder()
+                .add("messages", toJson(getTopEventsByMessages()))
+                .add("bytes", toJson(getTopEventsByBytes())))
+            .build();
+    }
+
+    @Override
+    public String toString() {
+        return "channels by messages: " + getTopChannelsByMessages() + "\n" +
+            "channels by bytes: " + getTopChannelsByBytes() + "\n" +
+            "events by messages: " + getTopEventsByMessages() + "\n" +
+            "events by bytes: " + getTopEventsByBytes();
+    }
+
+    private static JsonArrayBuilder toJson(List<HeavyHitter> hitters) {
+        JsonArrayBuilder array = Json.createArrayBuilder();
+        for (HeavyHitter hitter : hitters) {
+            array.add(Json.createObjectBuilder().add("name", hitter.getName()).add("value", hitter.getValue()));
+        }
+        return array;
+    }
+
+    private long epoch() {
+        return (System.nanoTime() - origin) / slotNanos;
+    }
+
+    private Slot slot(long epoch) {
+        final Slot slot = slots[(int) (epoch % SLOTS)];
+        if (slot.epoch != epoch) {
+            synchronized (slot) {
+                if (slot.epoch < epoch) {
+                    slot.clear();
+                    slot.epoch = epoch;
+                }
+            }
+        }
+        return slot;
+    }
+
+    private List<HeavyHitter> top(Function<Slot, Dimension> dimension, boolean bytes) {
+        final long epoch = epoch();
+        final List<Dimension> live = new ArrayList<>(SLOTS);
+        final Set<String> candidates = new HashSet<>();
+        for (Slot slot : slots) {
+            if (slot.epoch > epoch - SLOTS) {
+                Dimension d = dimension.apply(slot);
+                live.add(d);
+                d.addCandidatesTo(candidates, bytes);
+            }
+        }
+        final List<HeavyHitter> hitters = new ArrayList<>(candidates.size());
+        for (String name : candidates) {
+            long value = 0;
+            final int[] indexes = CountMinSketch.indexes(name, mask);
+            for (Dimension d : live) {
+                value += (bytes ? d.bytes : d.messages).estimate(indexes);
+            }
+            hitters.add(new HeavyHitter(name, value));
+        }
+        hitters.sort((a, b) -> Long.compare(b.value, a.value));
+        return hitters.size() > k ? new ArrayList<>(hitters.subList(0, k)) : hitters;
+    }
+
+    /**
+     * A channel or event name with its estimated volume
+     */
+    public static final class HeavyHitter {
+
+        private final String name;
+        private final long value;
+
+        HeavyHitter(String name, long value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the estimated number of messages or bytes over the window
+         */
+        public long getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + value;
+        }
+    }
+
+    private static final class Slot {
+        final Dimension channels;
+        final Dimension events;
+        volatile long epoch = -1;
+
+        Slot(int capacity, int width) {
+            this.channels = new Dimension(capacity, width);
+            this.events = new Dimension(capacity, width);
+        }
+
+        void clear() {
+            channels.clear();
+            events.clear();
+        }
+    }
+
+    private static final class Dimension {
+        final CountMinSketch messages;
+        final CountMinSketch bytes;
+        final Stripe[] stripes = new Stripe[STRIPES];
+
+        Dimension(int capacity, int width) {
+            this.messages = new CountMinSketch(width);
+            this.bytes = new CountMinSketch(width);
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new Stripe(capacity);
+            }
+        }
+
+        void add(String name, int dataBytes) {
+            final int[] indexes = CountMinSketch.indexes(name, messages.mask);
+            messages.add(indexes, 1);
+            bytes.add(indexes, dataBytes);
+            // a name always falls in the same stripe, which ranks it against the names of its stripe only
+            final int hash = name.hashCode();
+            final Stripe stripe = stripes[(hash ^ hash >>> 16) & (STRIPES - 1)];
+            synchronized (stripe) {
+                stripe.messages.add(name, 1);
+                stripe.bytes.add(name, dataBytes);
+            }
+        }
+
+        void addCandidatesTo(Collection<String> candidates, boolean bytes) {
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    (bytes ? stripe.bytes : stripe.messages).addKeysTo(candidates);
+                }
+            }
+        }
+
+        void clear() {
+            messages.clear();
+            bytes.clear();
+            for (Stripe stripe : stripes) {
+                synchronized (stripe) {
+                    stripe.messages.clear();
+                    stripe.bytes.clear();
+                }
+            }
+        }
+    }
+
+    private static final class Stripe {
+        final SpaceSaving messages;
+        final SpaceSaving bytes;
+
+        Stripe(int capacity) {
+            this.messages = new SpaceSaving(capacity);
+            this.bytes = new SpaceSaving(capacity);
+        }
+    }
+
+    /**
+     * Lock-free count-min sketch of {@value #DEPTH} rows, each one indexed by its own seeded hash of the name, so that
+     * names colliding in a row are unlikely to collide in the others
+     */
+    static final class CountMinSketch {
+
+        static final int DEPTH = 4;
+        private static final int[] SEEDS = {0x9747B28C, 0x2F4A6D13, 0x6C8E9CF5, 0x1B873593};
+
+        final int mask;
+        private final AtomicLongArray counters;
+
+        CountMinSketch(int width) {
+            this.mask = width - 1;
+            this.counters = new AtomicLongArray(width * DEPTH);
+        }
+
+        /**
+         * @return the counter of the name in each row, for a sketch of the given mask
+         */
+        static int[] indexes(String name, int mask) {
+            final int[] indexes = new int[DEPTH];
+            for (int row = 0; row < DEPTH; row++) {
+                indexes[row] = row * (mask + 1) + (hash(name, SEEDS[row]) & mask);
+            }
+            return indexes;
+        }
+
+        void add(int[] indexes, long weight) {
+            for (int index : indexes) {
+                counters.addAndGet(index, weight);
+            }
+        }
+
+        long estimate(int[] indexes) {
+            long min = Long.MAX_VALUE;
+            for (int index : indexes) {
+                min = Math.min(min, counters.get(index));
+            }
+            return min;
+        }
+
+        void clear() {
+            for (int i = 0; i < counters.length(); i++) {
+                counters.set(i, 0);
+            }
+        }
+
+        /**
+         * MurmurHash3 (x86, 32 bits) of the characters of the name
+         */
+        static int hash(String name, int seed) {
+            int h = seed;
+            for (int i = 0; i < name.length(); i++) {
+                int c = name.charAt(i) * 0xCC9E2D51;
+                c = Integer.rotateLeft(c, 15) * 0x1B873593;
+                h ^= c;
+                h = Integer.rotateLeft(h, 13) * 5 + 0xE6546B64;
+            }
+            h ^= name.length();
+            h ^= h >>> 16;
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            h *= 0xC2B2AE35;
+            h ^= h >>> 16;
+            return h;
+        }
+    }
+
+    /**
+     * Space-saving summary: the heaviest names are kept in an indexed min-heap, and a new name takes the place of the
+     * lightest one, inheriting its count. Not thread-safe.
+     */
+    static final class SpaceSaving {
+
+        private final String[] names;
+        private final long[] counts;
+        private final Map<String, Integer> positions;
+        private int size;
+
+        SpaceSaving(int capacity) {
+            this.names = new String[capacity];
+            this.counts = new long[capacity];
+            this.positions = new HashMap<>(capacity * 2);
+        }
+
+        void add(String name, long weight) {
+            final Integer position = positions.get(name);
+            if (position != null) {
+                counts[position] += weight;
+                siftDown(position);
+            } else if (size < names.length) {
+                names[size] = name;
+                counts[size] = weight;
+                positions.put(name, size);
+                siftUp(size++);
+            } else {
+                positions.remove(names[0]);
+                names[0] = name;
+                counts[0] += weight;
+                positions.put(name, 0);
+                siftDown(0);
+            }
+        }
+
+        void addKeysTo(Collection<String> keys) {
+            keys.addAll(Arrays.asList(names).subList(0, size));
+        }
+
+        void clear() {
+            Arrays.fill(names, null);
+            positions.clear();
+            size = 0;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (counts[parent] <= counts[i]) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int smallest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < size && counts[left] < counts[smallest]) {
+                    smallest = left;
+                }
+                if (right < size && counts[right] < counts[smallest]) {
+                    smallest = right;
+                }
+                if (smallest == i) {
+                    return;
+                }
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            String name = names[i];
+            names[i] = names[j];
+            names[j] = name;
+            long count = counts[i];
+            counts[i] = counts[j];
+            counts[j] = count;
+            positions.put(names[i], i);
+            positions.put(names[j], j);
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends the signed HTTP requests of a {@link Pusher}.
+ * <p>
+ * The built-in {@link PusherUrlConnectionTransport} is used by default. {@link PusherJaxRsTransport} adapts an existing JAX-RS client.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public interface PusherTransport extends Closeable {
+
+    /**
+     * Send a request without blocking the calling thread.
+     * <p>
+     * The returned future is completed with the response whatever its status, or exceptionally with a
+     * {@link javax.ws.rs.ProcessingException} when no response could be received. Cancelling the future aborts the request.
+     *
+     * @param method the HTTP method
+     * @param url    the complete, signed and encoded url
+     * @param body   the JSON body to send, or <code>null</code>
+     */
+    CompletableFuture<PusherResponse> send(String method, String url, byte[] body);
+
+    @Override
+    void close();
+
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import javax.ws.rs.ProcessingException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transport based on {@link HttpURLConnection}, without any dependency.
+ * <p>
+ * Connections are persistent: they are kept alive and reused once the response has been read or closed. The JDK keeps
+ * up to 5 idle connections per host by default, which can be raised with the <code>http.maxConnections</code> system property
+ * when many requests are sent concurrently. Requests are blocking, so each in-flight request uses a thread of this transport.
+ * At most <code>maxConnections</code> requests are sent at once, {@value #DEFAULT_MAX_CONNECTIONS} by default: the
+ * following ones wait in a queue of <code>maxQueued</code> requests, {@value #DEFAULT_MAX_QUEUED} by default, and the requests
+ * sent while it is full fail with a {@link RejectedExecutionException}. Both should be at least the in-flight limit of the
+ * {@link Pusher}, if any, so that its back-pressure policy applies first.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class PusherUrlConnectionTransport implements PusherTransport {
+
+    static final int DEFAULT_MAX_CONNECTIONS = 64;
+    static final int DEFAULT_MAX_QUEUED = 1024;
+
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final ExecutorService executor;
+
+    public PusherUrlConnectionTransport() {
+        this(10, 30, TimeUnit.SECONDS);
+    }
+
+    public PusherUrlConnectionTransport(long connectTimeout, long readTimeout, TimeUnit unit) {
+        this(connectTimeout, readTimeout, unit, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * @param maxConnections the maximum number of requests sent concurrently
+     */
+    public PusherUrlConnectionTransport(long connectTimeout, long readTimeout, TimeUnit unit, int maxConnections) {
+        this(connectTimeout, readTimeout, unit, maxConnections, DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * @param maxConnections the maximum number of requests sent concurrently
+     * @param maxQueued      the maximum number of requests waiting for a connection
+     */
+    public PusherUrlConnectionTransport(long connectTimeout, long readTimeout, TimeUnit unit, int maxConnections, int maxQueued) {
+        Prerequisites.nonNull("unit", unit);
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Parameter [maxConnections] must be positive");
+        }
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("Parameter [maxQueued] must be positive or zero");
+        }
+        this.connectTimeoutMillis = (int) unit.toMillis(connectTimeout);
+        this.readTimeoutMillis = (int) unit.toMillis(readTimeout);
+        final String name = "pusher-http-" + INSTANCES.incrementAndGet() + "-";
+        final AtomicInteger threads = new AtomicInteger();
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConnections, maxConnections, 60, TimeUnit.SECONDS, maxQueued == 0 ? new SynchronousQueue<>() : new LinkedBlockingQueue<>(maxQueued), r -> {
+            Thread t = new Thread(r, name + threads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        // idle threads are released like in a cached pool
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+    }
+
+    @Override
+    public CompletableFuture<PusherResponse> send(final String method, final String url, final byte[] body) {
+        final CompletableFuture<PusherResponse> result = new CompletableFuture<>();
+        final Exchange exchange = new Exchange(method, url, body, result);
+        try {
+            final Future<?> task = executor.submit(exchange);
+            result.whenComplete((r, e) -> {
+                if (e instanceof CancellationException) {
+                    task.cancel(true);
+                    exchange.abort();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private final class Exchange implements Runnable {
+
+        final String method;
+        final String url;
+        final byte[] body;
+        final CompletableFuture<PusherResponse> result;
+        volatile HttpURLConnection connection;
+
+        Exchange(String method, String url, byte[] body, CompletableFuture<PusherResponse> result) {
+            this.method = method;
+            this.url = url;
+            this.body = body;
+            this.result = result;
+        }
+
+        @Override
+        public void run() {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+                connection = c;
+                c.setConnectTimeout(connectTimeoutMillis);
+                c.setReadTimeout(readTimeoutMillis);
+                c.setUseCaches(false);
+                c.setRequestMethod(method);
+                c.setRequestProperty("Accept", "application/json");
+                if (body != null) {
+                    c.setDoOutput(true);
+                    c.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+                    c.setFixedLengthStreamingMode(body.length);
+                    try (OutputStream out = c.getOutputStream()) {
+                        out.write(body);
+                    }
+                }
+                int status = c.getResponseCode();
+                InputStream entity = status >= 400 ? c.getErrorStream() : c.getInputStream();
+                PusherResponse response = new PusherResponse(status, c.getResponseMessage(), entity == null ? new ByteArrayInputStream(EMPTY) : entity);
+                if (!result.complete(response)) {
+                    response.close();
+                }
+            } catch (IOException | RuntimeException e) {
+                result.completeExceptionally(new ProcessingException(e.getMessage(), e));
+            }
+        }
+
+        void abort() {
+            HttpURLConnection c = connection;
+            if (c != null) {
+                c.disconnect();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+/**
+ * Response of the user authentication endpoint
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ * @see Pusher#authenticateUser(String, PusherPresence)
+ */
+public final class PusherUserAuth {
+
+    private final String auth;
+    private final String userData;
+
+    public PusherUserAuth(final String key, final String signature, final String userData) {
+        this.auth = key + ":" + signature;
+        this.userData = userData;
+    }
+
+    public String getAuth() {
+        return auth;
+    }
+
+    public String getUserData() {
+        return userData;
+    }
+
+    public JsonObject toJson() {
+        return Json.createObjectBuilder()
+            .add("auth", getAuth())
+            .add("user_data", getUserData())
+            .build();
+    }
+
+    @Override
+    public String toString() {
+        return getAuth();
+    }
+}
@@ -0,0 +1,240 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receives Pusher webhooks: checks their signature and notifies their events to the registered listeners.
+ * <p>
+ * The signature is verified over the raw request bytes, which are then stream-parsed. Listeners are called on the
+ * given executor, events of the same channel being notified in order. Member events also update the
+ * {@link Pusher#getMemberCache()} of the client, if any.
+ * <p>
+ * From a JAX-RS resource:
+ * <pre>
+ * &#64;POST
+ * &#64;Path("pusher/webhook")
+ * public Response webhook(&#64;Context HttpHeaders headers, byte[] body) {
+ *     return webhook.handle(headers, body);
+ * }
+ * </pre>
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class PusherWebhook {
+
+    public static final String KEY_HEADER = "X-Pusher-Key";
+    public static final String SIGNATURE_HEADER = "X-Pusher-Signature";
+
+    private static final Logger LOGGER = Logger.getLogger(PusherWebhook.class.getName());
+
+    private final Pusher client;
+    private final StripedExecutor executor;
+    private final List<PusherWebhookListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Listeners are called from a thread receiving webhooks. While a thread notifies events, the events received
+     * concurrently by other threads are notified by it, once its own ones have been, so that they stay in order.
+     */
+    public PusherWebhook(Pusher client) {
+        this(client, Runnable::run, 1);
+    }
+
+    /**
+     * @param executor the executor listeners are called on
+     * @param stripes  the number of channel groups notified in parallel
+     */
+    public PusherWebhook(Pusher client, Executor executor, int stripes) {
+        Prerequisites.nonNull("client", client);
+        this.client = client;
+        this.executor = new StripedExecutor(executor, stripes);
+    }
+
+    public Pusher getClient() {
+        return client;
+    }
+
+    public void addListener(PusherWebhookListener listener) {
+        Prerequisites.nonNull("listener", listener);
+        listeners.add(listener);
+    }
+
+    public void removeListener(PusherWebhookListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return true if the webhook has been sent by Pusher for the application of the client
+     */
+    public boolean verify(String key, String signature, byte[] body) {
+        return client.getKey().equals(key) && client.getSignatureUtil().verify(body, signature);
+    }
+
+    /**
+     * Verify, parse and dispatch a webhook
+     *
+     * @return the number of events dispatched
+     * @throws SecurityException        if the signature is invalid
+     * @throws IllegalArgumentException if the body is not a valid webhook
+     */
+    public int process(String key, String signature, byte[] body) throws SecurityException, IllegalArgumentException {
+        Prerequisites.nonNull("body", body);
+        if (!verify(key, signature, body)) {
+            throw new SecurityException("Invalid Pusher webhook signature");
+        }
+        final List<PusherWebhookEvent> events;
+        try {
+            events = parse(body);
+        } catch (JsonException | IllegalStateException e) {
+            throw new IllegalArgumentException("Invalid Pusher webhook: " + e.getMessage(), e);
+        }
+        for (final PusherWebhookEvent event : events) {
+            executor.execute(event.getChannel() == null ? "" : event.getChannel(), () -> dispatch(event));
+        }
+        return events.size();
+    }
+
+    /**
+     * Process a webhook received by a JAX-RS resource
+     *
+     * @return the response to send back to Pusher: 200, 401 if the signature is invalid or 400 if the body is not a webhook
+     */
+    public Response handle(HttpHeaders headers, byte[] body) {
+        try {
+            process(headers.getHeaderString(KEY_HEADER), headers.getHeaderString(SIGNATURE_HEADER), body);
+            return Response.ok().build();
+        } catch (SecurityException e) {
+            LOGGER.warning(e.getMessage());
+            return Response.status(Response.Status.UNAUTHORIZED).build();
+        } catch (IllegalArgumentException e) {
+            LOGGER.warning(e.getMessage());
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+    }
+
+    private void dispatch(PusherWebhookEvent event) {
+        PusherMemberCache cache = client.getMemberCache();
+        if (cache != null && event.getUserId() != null) {
+            if (event.getType() == PusherWebhookEvent.Type.MEMBER_ADDED) {
+                cache.memberAdded(event.getChannel(), event.getUserId());
+            } else if (event.getType() == PusherWebhookEvent.Type.MEMBER_REMOVED) {
+                cache.memberRemoved(event.getChannel(), event.getUserId());
+            }
+        }
+        for (PusherWebhookListener listener : listeners) {
+            try {
+                switch (event.getType()) {
+                    case CHANNEL_OCCUPIED:
+                        listener.onChannelOccupied(event);
+                        break;
+                    case CHANNEL_VACATED:
+                        listener.onChannelVacated(event);
+                        break;
+                    case MEMBER_ADDED:
+                        listener.onMemberAdded(event);
+                        break;
+                    case MEMBER_REMOVED:
+                        listener.onMemberRemoved(event);
+                        break;
+                    case CLIENT_EVENT:
+                        listener.onClientEvent(event);
+                        break;
+                    default:
+                        listener.onUnknownEvent(event);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Webhook listener " + listener + " failed on " + event, e);
+            }
+        }
+    }
+
+    static List<PusherWebhookEvent> parse(byte[] body) {
+        final List<String[]> events = new ArrayList<>();
+        long timeMs = 0;
+        try (JsonParser parser = Json.createParser(new ByteArrayInputStream(body))) {
+            JsonStreams.expect(parser, JsonParser.Event.START_OBJECT);
+            while (parser.next() == JsonParser.Event.KEY_NAME) {
+                String key = parser.getString();
+                JsonParser.Event value = parser.next();
+                if ("time_ms".equals(key) && value == JsonParser.Event.VALUE_NUMBER) {
+                    timeMs = parser.getLong();
+                } else if ("events".equals(key) && value == JsonParser.Event.START_ARRAY) {
+                    while (parser.next() == JsonParser.Event.START_OBJECT) {
+                        events.add(parseEvent(parser));
+                    }
+                } else {
+                    JsonStreams.skip(parser, value);
+                }
+            }
+        }
+        final List<PusherWebhookEvent> result = new ArrayList<>(events.size());
+        for (String[] e : events) {
+            result.add(new PusherWebhookEvent(timeMs, e[0], e[1], e[2], e[3], e[4], e[5]));
+        }
+        return result;
+    }
+
+    // name, channel, user_id, event, data, socket_id
+    private static String[] parseEvent(JsonParser parser) {
+        final String[] fields = new String[6];
+        while (parser.next() == JsonParser.Event.KEY_NAME) {
+            String key = parser.getString();
+            JsonParser.Event value = parser.next();
+            int index;
+            switch (key) {
+                case "name":
+                    index = 0;
+                    break;
+                case "channel":
+                    index = 1;
+                    break;
+                case "user_id":
+                    index = 2;
+                    break;
+                case "event":
+                    index = 3;
+                    break;
+                case "data":
+                    index = 4;
+                    break;
+                case "socket_id":
+                    index = 5;
+                    break;
+                default:
+                    index = -1;
+            }
+            if (index >= 0 && (value == JsonParser.Event.VALUE_STRING || value == JsonParser.Event.VALUE_NUMBER)) {
+                fields[index] = parser.getString();
+            } else {
+                JsonStreams.skip(parser, value);
+            }
+        }
+        return fields;
+    }
+
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+/**
+ * An event notified by a Pusher webhook
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class PusherWebhookEvent {
+
+    public enum Type {
+        CHANNEL_OCCUPIED("channel_occupied"),
+        CHANNEL_VACATED("channel_vacated"),
+        MEMBER_ADDED("member_added"),
+        MEMBER_REMOVED("member_removed"),
+        CLIENT_EVENT("client_event"),
+        /**
+         * An event this client does not know about: see {@link PusherWebhookEvent#getName()}
+         */
+        UNKNOWN(null);
+
+        private final String name;
+
+        Type(String name) {
+            this.name = name;
+        }
+
+        static Type of(String name) {
+            for (Type type : values()) {
+                if (name != null && name.equals(type.name)) {
+                    return type;
+                }
+            }
+            return UNKNOWN;
+        }
+    }
+
+    private final long timeMs;
+    private final String name;
+    private final String channel;
+    private final String userId;
+    private final String event;
+    private final String data;
+    private final String socketId;
+
+    PusherWebhookEvent(long timeMs, String name, String channel, String userId, String event, String data, String socketId) {
+        this.timeMs = timeMs;
+        this.name = name;
+        this.channel = channel;
+        this.userId = userId;
+        this.event = event;
+        this.data = data;
+        this.socketId = socketId;
+    }
+
+    public Type getType() {
+        return Type.of(name);
+    }
+
+    /**
+     * @return the time the webhook was sent at, in milliseconds since the epoch
+     */
+    public long getTimeMs() {
+        return timeMs;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return the user of member events, and of client events sent on presence channels
+     */
+    public String getUserId() {
+        return userId;
+    }
+
+    /**
+     * @return the name of the client event
+     */
+    public String getEvent() {
+        return event;
+    }
+
+    /**
+     * @return the data of the client event
+     */
+    public String getData() {
+        return data;
+    }
+
+    /**
+     * @return the socket which sent the client event
+     */
+    public String getSocketId() {
+        return socketId;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + channel + (userId == null ? "" : " " + userId) + (event == null ? "" : " " + event);
+    }
+}
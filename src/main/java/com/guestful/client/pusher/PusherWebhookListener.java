@@ -0,0 +1,44 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+/**
+ * Receives the events of Pusher webhooks. Events of the same channel are notified in order, from one thread at a time.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ * @see PusherWebhook#addListener(PusherWebhookListener)
+ */
+public interface PusherWebhookListener {
+
+    default void onChannelOccupied(PusherWebhookEvent event) {
+    }
+
+    default void onChannelVacated(PusherWebhookEvent event) {
+    }
+
+    default void onMemberAdded(PusherWebhookEvent event) {
+    }
+
+    default void onMemberRemoved(PusherWebhookEvent event) {
+    }
+
+    default void onClientEvent(PusherWebhookEvent event) {
+    }
+
+    default void onUnknownEvent(PusherWebhookEvent event) {
+    }
+
+}
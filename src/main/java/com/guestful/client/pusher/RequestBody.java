@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import javax.json.Json;
+import javax.json.JsonStructure;
+import javax.json.JsonWriter;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * UTF-8 encoded JSON body of a request, serialized once and shared by the <code>body_md5</code> signature and the HTTP entity.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class RequestBody {
+
+    private static final JsonGeneratorFactory GENERATORS = Json.createGeneratorFactory(Collections.<String, Object>emptyMap());
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final byte[] bytes;
+
+    private RequestBody(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    int length() {
+        return bytes.length;
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static RequestBody of(byte[] bytes) {
+        return new RequestBody(bytes);
+    }
+
+    static RequestBody of(JsonStructure json) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try (JsonWriter writer = Json.createWriter(out)) {
+            writer.write(json);
+        }
+        return new RequestBody(out.toByteArray());
+    }
+
+    /**
+     * Stream a body with a {@link JsonGenerator}
+     */
+    static RequestBody write(Consumer<JsonGenerator> content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try (JsonGenerator generator = GENERATORS.createGenerator(out, StandardCharsets.UTF_8)) {
+            content.accept(generator);
+        }
+        return new RequestBody(out.toByteArray());
+    }
+
+    /**
+     * Body of the <code>events</code> endpoint
+     */
+    static RequestBody event(final List<String> channels, final String eventName, final String data) {
+        return write(generator -> {
+            generator.writeStartObject().writeStartArray("channels");
+            for (String channel : channels) {
+                generator.write(channel);
+            }
+            generator.writeEnd()
+                .write("name", eventName)
+                .write("data", data)
+                .writeEnd();
+        });
+    }
+
+    /**
+     * Body of the <code>events</code> endpoint for data already encoded in UTF-8, copied as is in the JSON string
+     */
+    static RequestBody event(final List<String> channels, final String eventName, final byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 64);
+        out.write('{');
+        writeName(out, "channels");
+        out.write('[');
+        for (int i = 0; i < channels.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            writeString(out, channels.get(i).getBytes(StandardCharsets.UTF_8));
+        }
+        out.write(']');
+        out.write(',');
+        writeName(out, "name");
+        writeString(out, eventName.getBytes(StandardCharsets.UTF_8));
+        out.write(',');
+        writeName(out, "data");
+        writeString(out, data);
+        out.write('}');
+        return new RequestBody(out.toByteArray());
+    }
+
+    private static void writeName(ByteArrayOutputStream out, String name) {
+        writeString(out, name.getBytes(StandardCharsets.UTF_8));
+        out.write(':');
+    }
+
+    /**
+     * Write a JSON string, escaping the quotes, backslashes and control characters. The other UTF-8 bytes are kept.
+     */
+    private static void writeString(ByteArrayOutputStream out, byte[] utf8) {
+        out.write('"');
+        int start = 0;
+        for (int i = 0; i < utf8.length; i++) {
+            int b = utf8[i] & 0xFF;
+            if (b >= 0x20 && b != '"' && b != '\\') {
+                continue;
+            }
+            out.write(utf8, start, i - start);
+            out.write('\\');
+            switch (b) {
+                case '"':
+                case '\\':
+                    out.write(b);
+                    break;
+                case '\n':
+                    out.write('n');
+                    break;
+                case '\r':
+                    out.write('r');
+                    break;
+                case '\t':
+                    out.write('t');
+                    break;
+                case '\b':
+                    out.write('b');
+                    break;
+                case '\f':
+                    out.write('f');
+                    break;
+                default:
+                    out.write('u');
+                    out.write('0');
+                    out.write('0');
+                    out.write(HEX[b >> 4]);
+                    out.write(HEX[b & 0xF]);
+            }
+            start = i + 1;
+        }
+        out.write(utf8, start, utf8.length - start);
+        out.write('"');
+    }
+
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import javax.json.Json;
+import javax.json.stream.JsonParser;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterates over the elements of a response while they are parsed from the entity stream, so the response is never fully in memory.
+ * The response is closed at the end of the iteration or when the iterator is closed.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+abstract class ResponseIterator<T> implements Iterator<T>, AutoCloseable {
+
+    private final PusherResponse response;
+    private final JsonParser parser;
+    private T next;
+    private boolean done;
+
+    ResponseIterator(PusherResponse response) {
+        this.response = response;
+        try {
+            this.parser = Json.createParser(response.getEntity());
+        } catch (RuntimeException e) {
+            response.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the next element, or null at the end of the collection
+     */
+    protected abstract T read(JsonParser parser);
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !done) {
+            try {
+                next = read(parser);
+            } catch (RuntimeException e) {
+                close();
+                throw e;
+            }
+            if (next == null) {
+                close();
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T t = next;
+        next = null;
+        return t;
+    }
+
+    @Override
+    public void close() {
+        if (!done) {
+            done = true;
+            try {
+                parser.close();
+            } finally {
+                response.close();
+            }
+        }
+    }
+
+    Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(this::close);
+    }
+
+}
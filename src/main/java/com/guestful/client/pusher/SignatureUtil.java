@@ -16,90 +16,194 @@
 package com.guestful.client.pusher;
 
 import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.SecretKeySpec;
-import javax.json.JsonStructure;
-import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MultivaluedHashMap;
 import javax.ws.rs.core.MultivaluedMap;
 import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
 
+/**
+ * Signing engine bound to the secret of a {@link Pusher} application.
+ * <p>
+ * The secret key is computed once, and initialized {@link Mac} and {@link MessageDigest} instances are kept per thread
+ * together with the buffers the digests are encoded into.
+ */
 class SignatureUtil {
 
     private static final char[] BASE16 = "0123456789abcdef".toCharArray();
+    private static final String HMAC_SHA256 = "HmacSHA256";
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        // If this doesn't exist, we're pretty much out of luck.
+        catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException("The Pusher REST client requires MD5 support", e);
+        }
+    });
 
-    public static WebTarget sign(final String method,
-                          WebTarget target,
-                          JsonStructure body,
-                          MultivaluedMap<String, Object> queryParams,
-                          final String key,
-                          final String secret) {
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
 
-        Prerequisites.noReservedKeys(queryParams);
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
 
-        MultivaluedMap<String, Object> allQueryParams = new MultivaluedHashMap<String, Object>(queryParams);
+    /**
+     * @param secret the secret of the application. As before the signing engine, an application can be built without a
+     *               secret: only signing then fails, with an {@link IllegalStateException}.
+     */
+    SignatureUtil(final String secret) {
+        this.key = secret == null || secret.isEmpty() ? null : new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC_SHA256);
+        // fails early on an invalid secret
+        final Mac prototype = key == null ? null : newMac();
+        this.macs = ThreadLocal.withInitial(() -> {
+            if (prototype == null) {
+                throw new IllegalStateException("The Pusher application has no secret");
+            }
+            try {
+                return (Mac) prototype.clone();
+            } catch (CloneNotSupportedException e) {
+                return newMac();
+            }
+        });
+    }
+
+    /**
+     * Build the signed url of a request.
+     * <p>
+     * The string to sign and the query string are built in the same buffer: when the parameter values do not need to be
+     * encoded, which is always the case for events, the signed query string is reused as is.
+     *
+     * @param baseUrl the scheme, host and port, i.e. <code>https://api.pusherapp.com</code>
+     * @param path    the absolute path, i.e. <code>/apps/42/events</code>
+     */
+    String signUrl(final String method,
+                   final String baseUrl,
+                   final String path,
+                   final RequestBody body,
+                   final MultivaluedMap<String, Object> queryParams,
+                   final String key) {
+
+        Prerequisites.noReservedKeys(queryParams);
 
-        target = target.queryParam("auth_key", key);
-        allQueryParams.putSingle("auth_key", key);
+        final String stamp = Long.toString(System.currentTimeMillis() / 1000);
+        final String md5 = body == null ? null : bodyMd5(body);
+        final StringBuilder sb;
+        final int queryStart;
+        boolean urlSafe = isUrlSafe(key);
 
-        target = target.queryParam("auth_version", "1.0");
-        allQueryParams.putSingle("auth_version", "1.0");
+        if (queryParams.isEmpty()) {
+            sb = new StringBuilder(baseUrl.length() + path.length() + 256)
+                .append(method)
+                .append('\n')
+                .append(path)
+                .append('\n');
+            queryStart = sb.length();
+            // in alphabetical order
+            sb.append("auth_key=").append(key)
+                .append("&auth_timestamp=").append(stamp)
+                .append("&auth_version=1.0");
+            if (md5 != null) {
+                sb.append("&body_md5=").append(md5);
+            }
+        } else {
+            final MultivaluedMap<String, Object> allQueryParams = new MultivaluedHashMap<>(queryParams);
+            allQueryParams.putSingle("auth_key", key);
+            allQueryParams.putSingle("auth_version", "1.0");
+            allQueryParams.putSingle("auth_timestamp", stamp);
+            if (md5 != null) {
+                allQueryParams.putSingle("body_md5", md5);
+            }
+            for (final String k : queryParams.keySet()) {
+                urlSafe &= isUrlSafe(k) && isUrlSafe(String.valueOf(queryParams.getFirst(k)));
+            }
+            sb = new StringBuilder(buildSignatureString(method, path, allQueryParams));
+            queryStart = method.length() + path.length() + 2;
+        }
 
-        String stamp = Long.toString(System.currentTimeMillis() / 1000);
-        target = target.queryParam("auth_timestamp", stamp);
-        allQueryParams.putSingle("auth_timestamp", stamp);
+        final String signature = sign(sb.toString());
 
-        if (body != null) {
-            String md5 = bodyMd5(body);
-            target = target.queryParam("body_md5", md5);
-            allQueryParams.putSingle("body_md5", md5);
+        if (!urlSafe) {
+            // rebuild the query string with the values encoded
+            final Map<String, Object> sorted = new TreeMap<>();
+            for (final String k : queryParams.keySet()) {
+                sorted.put(k, queryParams.getFirst(k));
+            }
+            sorted.put("auth_key", key);
+            sorted.put("auth_timestamp", stamp);
+            sorted.put("auth_version", "1.0");
+            if (md5 != null) {
+                sorted.put("body_md5", md5);
+            }
+            sb.setLength(queryStart);
+            for (final Map.Entry<String, Object> entry : sorted.entrySet()) {
+                if (sb.length() > queryStart) {
+                    sb.append('&');
+                }
+                sb.append(urlEncode(entry.getKey())).append('=').append(urlEncode(String.valueOf(entry.getValue())));
+            }
         }
 
-        // This is where the auth gets a bit weird. The query params for the request must include
-        // the auth signature which is a signature over all the params except itself.
-        target = target.queryParam("auth_signature", sign(buildSignatureString(method, target.getUri().getPath(), allQueryParams), secret));
+        return sb.replace(0, queryStart, "?")
+            .insert(0, path)
+            .insert(0, baseUrl)
+            .append("&auth_signature=")
+            .append(signature)
+            .toString();
+    }
 
-        return target;
+    public String sign(final String input) {
+        return sign(input.getBytes(StandardCharsets.UTF_8));
     }
 
-    public static String sign(final String input, final String secret) {
+    public String sign(final byte[] input) {
+        final Mac mac = macs.get();
+        final Buffers buffers = BUFFERS.get();
         try {
-            final Mac mac = Mac.getInstance("HmacSHA256");
-            mac.init(new SecretKeySpec(secret.getBytes(), "SHA256"));
-
-            final byte[] digest = mac.doFinal(input.getBytes("UTF-8"));
-            return encodeHexString(digest);
-        } catch (final InvalidKeyException e) {
-            /// We validate this when the key is first provided, so we should never encounter it here.
-            throw new RuntimeException("Invalid secret key", e);
-        }
-        // If either of these doesn't exist, we're pretty much out of luck.
-        catch (final NoSuchAlgorithmException e) {
-            throw new RuntimeException("The Pusher REST client requires HmacSHA256 support", e);
-        } catch (final UnsupportedEncodingException e) {
-            throw new RuntimeException("The Pusher REST client needs UTF-8 support", e);
+            mac.update(input);
+            mac.doFinal(buffers.digest, 0);
+            return encodeHexString(buffers.digest, mac.getMacLength(), buffers.hex);
+        } catch (final ShortBufferException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            mac.reset();
         }
     }
 
-    private static String bodyMd5(final JsonStructure body) {
+    /**
+     * Check a hex encoded signature of the given bytes in constant time
+     */
+    public boolean verify(final byte[] input, final String signature) {
+        return signature != null && MessageDigest.isEqual(
+            sign(input).getBytes(StandardCharsets.US_ASCII),
+            signature.toLowerCase().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    static String bodyMd5(final RequestBody body) {
+        final MessageDigest md = MD5.get();
+        final Buffers buffers = BUFFERS.get();
         try {
-            final MessageDigest md = MessageDigest.getInstance("MD5");
-            final byte[] digest = md.digest(body.toString().getBytes("UTF-8"));
-            return encodeHexString(digest);
-        }
-        // If this doesn't exist, we're pretty much out of luck.
-        catch (final NoSuchAlgorithmException e) {
-            throw new RuntimeException("The Pusher REST client requires MD5 support", e);
-        } catch (final UnsupportedEncodingException e) {
-            throw new RuntimeException("The Pusher REST client needs UTF-8 support", e);
+            md.update(body.getBytes());
+            final int length = md.digest(buffers.digest, 0, buffers.digest.length);
+            return encodeHexString(buffers.digest, length, buffers.hex);
+        } catch (final DigestException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            md.reset();
         }
     }
 
     // Visible for testing
-    private static String buildSignatureString(final String method, final String path, final MultivaluedMap<String, Object> queryParams) {
+    static String buildSignatureString(final String method, final String path, final MultivaluedMap<String, Object> queryParams) {
         final StringBuilder sb = new StringBuilder();
         sb.append(method)
             .append('\n')
@@ -122,14 +226,78 @@ class SignatureUtil {
         return sb.toString();
     }
 
-    private static String encodeHexString(byte[] bytes) {
-        char[] hexChars = new char[bytes.length * 2];
-        for (int j = 0; j < bytes.length; j++) {
+    private static boolean isUrlSafe(final String s) {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_' || c == '.' || c == '~' || c == ',')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Percent-encode a path segment, i.e. a channel name or a user id, so that it cannot change the path it is part of.
+     * The characters allowed in channel names are kept as is.
+     */
+    static String encodePathSegment(final String segment) {
+        int i = 0;
+        while (i < segment.length() && isPathSafe(segment.charAt(i))) {
+            i++;
+        }
+        if (i == segment.length()) {
+            return segment;
+        }
+        final StringBuilder sb = new StringBuilder(segment.length() + 16).append(segment, 0, i);
+        for (final byte b : segment.substring(i).getBytes(StandardCharsets.UTF_8)) {
+            if (b >= 0 && isPathSafe((char) b)) {
+                sb.append((char) b);
+            } else {
+                sb.append('%').append(Character.toUpperCase(BASE16[(b >> 4) & 0x0F])).append(Character.toUpperCase(BASE16[b & 0x0F]));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isPathSafe(final char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_' || c == '.' || c == '~' || c == '=' || c == '@' || c == ',' || c == ';';
+    }
+
+    private static String urlEncode(final String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8").replace("+", "%20");
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Mac newMac() {
+        try {
+            final Mac mac = Mac.getInstance(HMAC_SHA256);
+            mac.init(key);
+            return mac;
+        } catch (final InvalidKeyException e) {
+            throw new IllegalArgumentException("Invalid secret key", e);
+        }
+        // If this doesn't exist, we're pretty much out of luck.
+        catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException("The Pusher REST client requires HmacSHA256 support", e);
+        }
+    }
+
+    private static String encodeHexString(byte[] bytes, int length, char[] hexChars) {
+        for (int j = 0; j < length; j++) {
             int v = bytes[j] & 0xFF;
             hexChars[j * 2] = BASE16[v >>> 4];
             hexChars[j * 2 + 1] = BASE16[v & 0x0F];
         }
-        return new String(hexChars);
+        return new String(hexChars, 0, length * 2);
+    }
+
+    private static final class Buffers {
+        // large enough for MD5 and SHA-256 digests
+        final byte[] digest = new byte[32];
+        final char[] hex = new char[64];
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks on an executor while preserving the submission order of the tasks sharing the same key.
+ * <p>
+ * Keys are hashed to a fixed number of stripes, each one running its tasks one at a time: tasks of different stripes run in parallel.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+class StripedExecutor {
+
+    private static final Logger LOGGER = Logger.getLogger(StripedExecutor.class.getName());
+
+    private final Executor executor;
+    private final Stripe[] stripes;
+
+    StripedExecutor(Executor executor, int stripes) {
+        Prerequisites.nonNull("executor", executor);
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Parameter [stripes] must be positive");
+        }
+        this.executor = executor;
+        this.stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    void execute(Object key, Runnable task) {
+        int h = key.hashCode();
+        stripes[((h ^ (h >>> 16)) & 0x7fffffff) % stripes.length].execute(task);
+    }
+
+    private final class Stripe implements Runnable {
+
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean running;
+
+        void execute(Runnable task) {
+            synchronized (this) {
+                tasks.add(task);
+                if (running) {
+                    return;
+                }
+                running = true;
+            }
+            try {
+                executor.execute(this);
+            } catch (RuntimeException e) {
+                synchronized (this) {
+                    tasks.remove(task);
+                }
+                // the tasks queued meanwhile have no runner either
+                discard(e);
+                throw e;
+            }
+        }
+
+        @Override
+        public void run() {
+            // run a bounded number of tasks before giving the thread back to the executor
+            for (int i = 0; i < 64; i++) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.SEVERE, "Task failed: " + e.getMessage(), e);
+                }
+            }
+            try {
+                executor.execute(this);
+            } catch (RuntimeException e) {
+                discard(e);
+            }
+        }
+
+        private synchronized void discard(RuntimeException e) {
+            if (!tasks.isEmpty()) {
+                LOGGER.log(Level.SEVERE, "Unable to schedule " + tasks.size() + " tasks, they are discarded", e);
+                tasks.clear();
+            }
+            running = false;
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class EventChunksTest {
+
+    @Test
+    public void sizeCountsTheEscapedBytes() {
+        String data = "aé☺🍽\"\\\n\u0001";
+        assertEquals(1 + 2 + 3 + 4 + 2 + 2 + 2 + 6, EventChunks.size(data));
+        assertEquals(EventChunks.size(data), EventChunks.size(data.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(RequestBody.event(Collections.singletonList("c"), "e", data).length(),
+            RequestBody.event(Collections.singletonList("c"), "e", data.getBytes(StandardCharsets.UTF_8)).length());
+    }
+
+    @Test
+    public void exceedsCountsTheEscapedBytes() {
+        assertFalse(EventChunks.exceeds(repeat('a', 1000), 1000));
+        assertTrue(EventChunks.exceeds(repeat('a', 1001), 1000));
+        // half the size in raw bytes, twice once escaped
+        assertTrue(EventChunks.exceeds(repeat('"', 501), 1000));
+        assertTrue(EventChunks.exceeds(repeat('\u0001', 200), 1000));
+    }
+
+    @Test
+    public void splitsUnderTheLimit() {
+        String data = repeat('"', 300) + repeat('\\', 300) + repeat('\n', 300) + repeat('\u0001', 300) + repeat('é', 300);
+        List<String> chunks = EventChunks.split(data, 1000);
+        assertTrue(chunks.size() > 1);
+        for (String chunk : chunks) {
+            assertTrue(chunk, EventChunks.size(chunk) <= 1000);
+        }
+        assertEquals(data, join(chunks));
+    }
+
+    @Test
+    public void neverSplitsASurrogatePair() {
+        // a budget of 10 escaped bytes per chunk, shifted by one char so the pairs straddle the boundaries
+        StringBuilder data = new StringBuilder("a");
+        for (int i = 0; i < 50; i++) {
+            data.append("🍽");
+        }
+        List<String> chunks = EventChunks.split(data.toString(), 106);
+        assertTrue(chunks.size() > 10);
+        for (String chunk : chunks) {
+            String piece = read(chunk).getString("chunk");
+            assertFalse(piece, Character.isHighSurrogate(piece.charAt(piece.length() - 1)));
+            assertFalse(piece, Character.isLowSurrogate(piece.charAt(0)));
+        }
+        assertEquals(data.toString(), join(chunks));
+    }
+
+    static String join(List<String> chunks) {
+        StringBuilder data = new StringBuilder();
+        String id = null;
+        for (int i = 0; i < chunks.size(); i++) {
+            JsonObject chunk = read(chunks.get(i));
+            if (id == null) {
+                id = chunk.getString("id");
+            }
+            assertEquals(id, chunk.getString("id"));
+            assertEquals(i, chunk.getInt("index"));
+            assertEquals(i == chunks.size() - 1, chunk.getBoolean("final"));
+            data.append(chunk.getString("chunk"));
+        }
+        return data.toString();
+    }
+
+    static JsonObject read(String json) {
+        return Json.createReader(new StringReader(json)).readObject();
+    }
+
+    static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
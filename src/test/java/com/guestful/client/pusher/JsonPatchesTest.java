@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class JsonPatchesTest {
+
+    private static final String[] NAMES = {"a", "b", "c", "tables", "d/e", "f~g", "~1"};
+
+    @Test
+    public void diffsAreEmptyForEqualValues() {
+        JsonObject value = Json.createObjectBuilder().add("tables", Json.createArrayBuilder().add(1).add(2)).build();
+        assertEquals(0, JsonPatches.diff(value, Json.createReader(new StringReader(value.toString())).readObject()).size());
+    }
+
+    @Test
+    public void diffsEscapeMemberNames() {
+        JsonObject from = Json.createObjectBuilder().add("d/e", 1).build();
+        JsonObject to = Json.createObjectBuilder().add("d/e", 2).add("f~g", 3).build();
+        assertEquals("[{\"op\":\"replace\",\"path\":\"/d~1e\",\"value\":2},{\"op\":\"add\",\"path\":\"/f~0g\",\"value\":3}]", JsonPatches.diff(from, to).toString());
+    }
+
+    @Test
+    public void diffsApplyToTheirSource() {
+        Random random = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            JsonValue from = randomValue(random, 4);
+            JsonValue to = random.nextInt(4) == 0 ? randomValue(random, 4) : mutate(random, from, 4);
+            JsonArray patch = JsonPatches.diff(from, to);
+            assertEquals(from + " + " + patch, to, apply(from, patch));
+        }
+    }
+
+    private static JsonValue randomValue(Random random, int depth) {
+        switch (random.nextInt(depth == 0 ? 4 : 6)) {
+            case 0:
+                return random.nextBoolean() ? JsonValue.TRUE : JsonValue.FALSE;
+            case 1:
+                return JsonValue.NULL;
+            case 2:
+                return Json.createArrayBuilder().add(random.nextInt(10)).build().get(0);
+            case 3:
+                return Json.createArrayBuilder().add("s" + random.nextInt(10)).build().get(0);
+            case 4: {
+                JsonObjectBuilder builder = Json.createObjectBuilder();
+                for (int n = random.nextInt(4); n > 0; n--) {
+                    builder.add(NAMES[random.nextInt(NAMES.length)], randomValue(random, depth - 1));
+                }
+                return builder.build();
+            }
+            default: {
+                JsonArrayBuilder builder = Json.createArrayBuilder();
+                for (int n = random.nextInt(4); n > 0; n--) {
+                    builder.add(randomValue(random, depth - 1));
+                }
+                return builder.build();
+            }
+        }
+    }
+
+    private static JsonValue mutate(Random random, JsonValue value, int depth) {
+        if (value.getValueType() == JsonValue.ValueType.OBJECT) {
+            JsonObjectBuilder builder = Json.createObjectBuilder();
+            for (Map.Entry<String, JsonValue> member : ((JsonObject) value).entrySet()) {
+                int dice = random.nextInt(4);
+                if (dice == 1) {
+                    builder.add(member.getKey(), mutate(random, member.getValue(), depth - 1));
+                } else if (dice != 0) {
+                    builder.add(member.getKey(), member.getValue());
+                }
+            }
+            if (random.nextBoolean()) {
+                builder.add(NAMES[random.nextInt(NAMES.length)], randomValue(random, Math.max(0, depth - 1)));
+            }
+            return builder.build();
+        }
+        if (value.getValueType() == JsonValue.ValueType.ARRAY) {
+            JsonArray array = (JsonArray) value;
+            JsonArrayBuilder builder = Json.createArrayBuilder();
+            int size = random.nextInt(array.size() + 1);
+            for (int i = 0; i < size; i++) {
+                builder.add(random.nextInt(3) == 0 ? mutate(random, array.get(i), depth - 1) : array.get(i));
+            }
+            for (int n = random.nextInt(3); n > 0; n--) {
+                builder.add(randomValue(random, Math.max(0, depth - 1)));
+            }
+            return builder.build();
+        }
+        return random.nextBoolean() ? value : randomValue(random, Math.max(0, depth));
+    }
+
+    /**
+     * Applies the add, remove and replace operations of RFC 6902
+     */
+    static JsonValue apply(JsonValue document, JsonArray patch) {
+        Object root = toMutable(document);
+        for (JsonValue value : patch) {
+            JsonObject operation = (JsonObject) value;
+            String op = operation.getString("op");
+            String path = operation.getString("path");
+            if (path.isEmpty()) {
+                if (!op.equals("replace")) {
+                    throw new IllegalArgumentException(operation.toString());
+                }
+                root = toMutable(operation.get("value"));
+                continue;
+            }
+            int slash = path.lastIndexOf('/');
+            Object parent = resolve(root, path.substring(0, slash));
+            String token = path.substring(slash + 1).replace("~1", "/").replace("~0", "~");
+            if (parent instanceof Map) {
+                @SuppressWarnings("unchecked") Map<String, Object> object = (Map<String, Object>) parent;
+                if (op.equals("remove")) {
+                    if (object.remove(token) == null) {
+                        throw new IllegalArgumentException(operation.toString());
+                    }
+                } else {
+                    if (op.equals("replace") != object.containsKey(token)) {
+                        throw new IllegalArgumentException(operation.toString());
+                    }
+                    object.put(token, toMutable(operation.get("value")));
+                }
+            } else {
+                @SuppressWarnings("unchecked") List<Object> array = (List<Object>) parent;
+                if (op.equals("add")) {
+                    array.add(token.equals("-") ? array.size() : Integer.parseInt(token), toMutable(operation.get("value")));
+                } else if (op.equals("remove")) {
+                    array.remove(Integer.parseInt(token));
+                } else {
+                    array.set(Integer.parseInt(token), toMutable(operation.get("value")));
+                }
+            }
+        }
+        return toJson(root);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object resolve(Object root, String pointer) {
+        Object current = root;
+        if (pointer.isEmpty()) {
+            return current;
+        }
+        for (String token : pointer.substring(1).split("/", -1)) {
+            token = token.replace("~1", "/").replace("~0", "~");
+            current = current instanceof Map ? ((Map<String, Object>) current).get(token) : ((List<Object>) current).get(Integer.parseInt(token));
+        }
+        return current;
+    }
+
+    private static Object toMutable(JsonValue value) {
+        if (value.getValueType() == JsonValue.ValueType.OBJECT) {
+            Map<String, Object> object = new LinkedHashMap<>();
+            for (Map.Entry<String, JsonValue> member : ((JsonObject) value).entrySet()) {
+                object.put(member.getKey(), toMutable(member.getValue()));
+            }
+            return object;
+        }
+        if (value.getValueType() == JsonValue.ValueType.ARRAY) {
+            List<Object> array = new ArrayList<>();
+            for (JsonValue element : (JsonArray) value) {
+                array.add(toMutable(element));
+            }
+            return array;
+        }
+        return value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JsonValue toJson(Object value) {
+        if (value instanceof Map) {
+            JsonObjectBuilder builder = Json.createObjectBuilder();
+            for (Map.Entry<String, Object> member : ((Map<String, Object>) value).entrySet()) {
+                builder.add(member.getKey(), toJson(member.getValue()));
+            }
+            return builder.build();
+        }
+        if (value instanceof List) {
+            JsonArrayBuilder builder = Json.createArrayBuilder();
+            for (Object element : (List<Object>) value) {
+                builder.add(toJson(element));
+            }
+            return builder.build();
+        }
+        return (JsonValue) value;
+    }
+
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class PusherAuthTest {
+
+    private static final String KEY = "278d425bdf160c739803";
+    private static final String SECRET = "7ad3773142a6692b25b8";
+
+    private final Pusher pusher = new Pusher("http://" + KEY + ":" + SECRET + "@127.0.0.1:1/apps/42");
+
+    @Test
+    public void authenticatesSeveralChannelsAtOnce() throws Exception {
+        PusherPresence user = new PusherPresence("mathieu", Json.createObjectBuilder().add("name", "Mathieu").build());
+        Map<String, PusherAuth> auths = pusher.authenticate("1234.5678", Arrays.asList("private-floor-1", "presence-restaurant-1", "private-floor-2"), user);
+        assertEquals(Arrays.asList("private-floor-1", "presence-restaurant-1", "private-floor-2"), Arrays.asList(auths.keySet().toArray()));
+
+        String channelData = user.toJson().toString();
+        assertEquals(KEY + ":" + hmac("1234.5678:private-floor-1"), auths.get("private-floor-1").getAuth());
+        assertNull(auths.get("private-floor-1").getChannelData());
+        assertEquals(KEY + ":" + hmac("1234.5678:presence-restaurant-1:" + channelData), auths.get("presence-restaurant-1").getAuth());
+        assertEquals(channelData, auths.get("presence-restaurant-1").getChannelData());
+        for (Map.Entry<String, PusherAuth> entry : auths.entrySet()) {
+            PusherAuth single = entry.getKey().startsWith("presence-") ? pusher.authenticate("1234.5678", entry.getKey(), user) : pusher.authenticate("1234.5678", entry.getKey());
+            assertEquals(single.getAuth(), entry.getValue().getAuth());
+        }
+
+        JsonObject response = PusherAuth.toJson(auths);
+        assertEquals(200, response.getJsonObject("private-floor-2").getInt("status"));
+        assertEquals(auths.get("private-floor-2").getAuth(), response.getJsonObject("private-floor-2").getJsonObject("data").getString("auth"));
+    }
+
+    @Test
+    public void validatesAllChannelsBeforeSigning() {
+        try {
+            pusher.authenticate("1234.5678", Arrays.asList("private-floor-1", "floor-2", "public"), null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Authentication is only applicable to private and presence channels: [floor-2, public]", e.getMessage());
+        }
+        try {
+            pusher.authenticate("1234.5678", Arrays.asList("private-floor-1", "presence-restaurant-1"), null);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+    @Test
+    public void reusesTheChannelDataOfUnchangedMembers() {
+        PusherPresenceCache cache = new PusherPresenceCache(1);
+        pusher.setPresenceCache(cache);
+        JsonObject attributes = Json.createObjectBuilder().add("name", "Mathieu").build();
+        PusherAuth first = pusher.authenticate("1234.5678", "presence-restaurant-1", new PusherPresence("mathieu", attributes));
+        PusherAuth second = pusher.authenticate("1234.5678", "presence-restaurant-1", new PusherPresence("mathieu", Json.createObjectBuilder().add("name", "Mathieu").build()));
+        assertEquals(first.getAuth(), second.getAuth());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // changed attributes are serialized again
+        PusherPresence renamed = new PusherPresence("mathieu", Json.createObjectBuilder().add("name", "Math").build());
+        assertEquals(renamed.toJson().toString(), pusher.authenticate("1234.5678", "presence-restaurant-1", renamed).getChannelData());
+        assertEquals(2, cache.getMisses());
+
+        // the least recently used member is evicted
+        pusher.authenticate("1234.5678", "presence-restaurant-1", new PusherPresence("other"));
+        pusher.authenticate("1234.5678", "presence-restaurant-1", renamed);
+        assertEquals(4, cache.getMisses());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void authenticatesAUser() throws Exception {
+        PusherPresence user = new PusherPresence("mathieu", Json.createObjectBuilder().add("name", "Mathieu").build());
+        PusherUserAuth auth = pusher.authenticateUser("1234.5678", user);
+
+        JsonObject userData = Json.createReader(new StringReader(auth.getUserData())).readObject();
+        assertEquals("mathieu", userData.getString("id"));
+        assertEquals("Mathieu", userData.getJsonObject("user_info").getString("name"));
+        assertEquals(KEY + ":" + hmac("1234.5678::user::" + auth.getUserData()), auth.getAuth());
+        assertEquals(auth.getAuth(), auth.toJson().getString("auth"));
+        assertEquals(auth.getUserData(), auth.toJson().getString("user_data"));
+    }
+
+    @Test
+    public void failsToSignWithoutSecret() {
+        try (Pusher unsigned = new Pusher("42", KEY, null)) {
+            try {
+                unsigned.authenticate("1234.5678", "private-floor-1");
+                fail();
+            } catch (IllegalStateException ignored) {
+            }
+        }
+    }
+
+    private static String hmac(String data) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        StringBuilder sb = new StringBuilder();
+        for (byte b : mac.doFinal(data.getBytes(StandardCharsets.UTF_8))) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+}
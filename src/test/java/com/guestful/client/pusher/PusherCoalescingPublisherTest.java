@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class PusherCoalescingPublisherTest {
+
+    private PusherSimulator simulator;
+    private Pusher pusher;
+    private PusherCoalescingPublisher publisher;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new PusherSimulator();
+        pusher = new Pusher(simulator.getUrl());
+    }
+
+    @After
+    public void tearDown() {
+        publisher.close();
+        pusher.close();
+        simulator.close();
+    }
+
+    @Test
+    public void sendsTheLatestSnapshotOfAWindow() throws Exception {
+        publisher = new PusherCoalescingPublisher(pusher, 200, TimeUnit.MILLISECONDS);
+        CompletableFuture<Void> first = publisher.publish("private-floor-1", "table-updated", "12", table("12", 1));
+        CompletableFuture<Void> other = publisher.publish("private-floor-1", "table-updated", "13", table("13", 1));
+        for (int version = 2; version <= 5; version++) {
+            assertSame(first, publisher.publish("private-floor-1", "table-updated", "12", table("12", version)));
+        }
+        CompletableFuture.allOf(first, other).get(5, TimeUnit.SECONDS);
+        assertEquals(6, publisher.getSubmitted());
+        assertEquals(2, publisher.getSent());
+        assertEquals(4, publisher.getSuppressed());
+        assertEquals(0, publisher.getPending());
+        // the windows of different keys end independently
+        Set<String> data = new HashSet<>();
+        for (PusherSimulator.Event event : simulator.getEvents("private-floor-1")) {
+            data.add(event.getData());
+        }
+        assertEquals(new HashSet<>(Arrays.asList(table("12", 5).toString(), table("13", 1).toString())), data);
+    }
+
+    @Test
+    public void neverSendsASnapshotBeforeThePreviousOneOfItsKey() throws Exception {
+        publisher = new PusherCoalescingPublisher(pusher, 10, TimeUnit.MILLISECONDS);
+        simulator.setLatency(300, 300, TimeUnit.MILLISECONDS);
+        CompletableFuture<Void> first = publisher.publish("private-floor-1", "table-updated", "12", table("12", 1));
+        Thread.sleep(100);
+        CompletableFuture<Void> second = publisher.publish("private-floor-1", "table-updated", "12", table("12", 2));
+        Thread.sleep(100);
+        // the second window is over but the first snapshot is still in flight
+        assertEquals(2, publisher.getSent());
+        assertEquals(1, simulator.getPublishedCount());
+        CompletableFuture.allOf(first, second).get(5, TimeUnit.SECONDS);
+        List<PusherSimulator.Event> events = simulator.getEvents("private-floor-1");
+        assertEquals(2, events.size());
+        assertEquals(table("12", 1).toString(), events.get(0).getData());
+        assertEquals(table("12", 2).toString(), events.get(1).getData());
+    }
+
+    @Test
+    public void closingSendsThePendingSnapshots() throws Exception {
+        publisher = new PusherCoalescingPublisher(pusher, 1, TimeUnit.MINUTES);
+        CompletableFuture<Void> future = publisher.publish("private-floor-1", "table-updated", "12", table("12", 1));
+        publisher.close();
+        future.get(5, TimeUnit.SECONDS);
+        assertEquals(1, simulator.getPublishedCount());
+        assertEquals(IllegalStateException.class, publisher.publish("private-floor-1", "table-updated", "12", table("12", 2)).handle((v, e) -> e.getClass()).get());
+    }
+
+    private static JsonObject table(String id, int version) {
+        return Json.createObjectBuilder().add("id", id).add("version", version).build();
+    }
+
+
+    @Test
+    public void neverBlocksTheOtherWindows() throws Exception {
+        // one request per second: the third event blocks until the second one leaves the queue
+        pusher.setRateLimiter(new PusherRateLimiter(1, 1, 1, PusherBackpressure.BLOCK));
+        publisher = new PusherCoalescingPublisher(pusher, 20, TimeUnit.MILLISECONDS);
+        JsonObject data = Json.createObjectBuilder().add("seats", 4).build();
+        publisher.publish("private-floor-1", "table", "1", data);
+        publisher.publish("private-floor-1", "table", "2", data);
+        publisher.publish("private-floor-1", "table", "3", data);
+        TimeUnit.MILLISECONDS.sleep(100);
+        publisher.publish("private-floor-1", "table", "4", data);
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertEquals(0, publisher.getPending());
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonStructure;
+import javax.json.JsonValue;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class PusherDeltaPublisherTest {
+
+    private PusherSimulator simulator;
+    private Pusher pusher;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new PusherSimulator();
+        pusher = new Pusher(simulator.getUrl());
+    }
+
+    @After
+    public void tearDown() {
+        pusher.close();
+        simulator.close();
+    }
+
+    @Test
+    public void subscribersRebuildEachStateWithPeriodicKeyframes() throws Exception {
+        PusherDeltaPublisher publisher = new PusherDeltaPublisher(pusher, 3, 10);
+        List<JsonStructure> states = new ArrayList<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int version = 0; version < 7; version++) {
+            JsonStructure state = floor(version);
+            states.add(state);
+            futures.add(publisher.publish("private-floor-1", "floor-updated", "1", state));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+
+        List<PusherSimulator.Event> events = simulator.getEvents("private-floor-1");
+        assertEquals(7, events.size());
+        JsonValue state = null;
+        long seq = -1;
+        for (int i = 0; i < events.size(); i++) {
+            JsonObject data = read(events.get(i).getData());
+            assertEquals("1", data.getString("key"));
+            assertEquals("event " + i, i % 3 == 0, data.containsKey("state"));
+            if (data.containsKey("state")) {
+                state = data.get("state");
+            } else {
+                assertEquals(seq, data.getJsonNumber("base").longValue());
+                state = JsonPatchesTest.apply(state, data.getJsonArray("patch"));
+            }
+            seq = data.getJsonNumber("seq").longValue();
+            assertEquals(states.get(i), state);
+        }
+        assertEquals(3, publisher.getKeyframes());
+        assertEquals(4, publisher.getDeltas());
+        assertTrue(publisher.getBytesSaved() > 0);
+    }
+
+    @Test
+    public void sendsAKeyframeAfterAFailure() throws Exception {
+        PusherDeltaPublisher publisher = new PusherDeltaPublisher(pusher, 100, 10);
+        publisher.publish("private-floor-1", "floor-updated", floor(0)).get(5, TimeUnit.SECONDS);
+        simulator.setErrorRate(1);
+        try {
+            publisher.publish("private-floor-1", "floor-updated", floor(1)).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException ignored) {
+        }
+        simulator.setErrorRate(0);
+        publisher.publish("private-floor-1", "floor-updated", floor(2)).get(5, TimeUnit.SECONDS);
+        publisher.publish("private-floor-1", "floor-updated", floor(3)).get(5, TimeUnit.SECONDS);
+        List<PusherSimulator.Event> events = simulator.getEvents("private-floor-1");
+        assertEquals(3, events.size());
+        assertTrue(read(events.get(1).getData()).containsKey("state"));
+        assertTrue(read(events.get(2).getData()).containsKey("patch"));
+    }
+
+    @Test
+    public void sendsAKeyframeWhenTheDeltaIsNotSmaller() throws Exception {
+        PusherDeltaPublisher publisher = new PusherDeltaPublisher(pusher, 100, 10);
+        publisher.publish("private-floor-1", "floor-updated", Json.createObjectBuilder().add("a", 1).build()).get(5, TimeUnit.SECONDS);
+        publisher.publish("private-floor-1", "floor-updated", Json.createObjectBuilder().add("b", 2).build()).get(5, TimeUnit.SECONDS);
+        assertEquals(2, publisher.getKeyframes());
+        assertEquals(0, publisher.getDeltas());
+
+        // forgotten entities start over with a keyframe
+        publisher.publish("private-floor-1", "floor-updated", floor(0)).get(5, TimeUnit.SECONDS);
+        publisher.publish("private-floor-1", "floor-updated", floor(3)).get(5, TimeUnit.SECONDS);
+        assertEquals(1, publisher.getDeltas());
+        publisher.invalidate("private-floor-1");
+        assertEquals(0, publisher.size());
+        publisher.publish("private-floor-1", "floor-updated", floor(6)).get(5, TimeUnit.SECONDS);
+        assertEquals(4, publisher.getKeyframes());
+        assertEquals(1, publisher.getDeltas());
+    }
+
+    private static JsonObject floor(int version) {
+        JsonArrayBuilder tables = Json.createArrayBuilder();
+        for (int i = 0; i < 10 + version % 3; i++) {
+            tables.add(Json.createObjectBuilder().add("id", i).add("status", i == version ? "seated" : "free").add("covers", 4));
+        }
+        return Json.createObjectBuilder().add("floor", 1).add("tables", tables).build();
+    }
+
+    private static JsonObject read(String data) {
+        return Json.createReader(new StringReader(data)).readObject();
+    }
+
+}
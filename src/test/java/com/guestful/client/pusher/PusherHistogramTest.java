@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class PusherHistogramTest {
+
+    @Test
+    public void bucketBoundaries() {
+        for (long value = 0; value < 32; value++) {
+            assertEquals(value, PusherHistogram.index(value));
+            assertEquals(value, PusherHistogram.highestValue((int) value));
+        }
+        assertEquals(32, PusherHistogram.index(32));
+        assertEquals(63, PusherHistogram.index(63));
+        // from 64 the buckets are 2 wide, from 128 4 wide...
+        assertEquals(64, PusherHistogram.index(64));
+        assertEquals(64, PusherHistogram.index(65));
+        assertEquals(65, PusherHistogram.index(66));
+        assertEquals(65, PusherHistogram.highestValue(64));
+        // the buckets are contiguous up to the last one
+        int last = PusherHistogram.index(Long.MAX_VALUE);
+        for (int i = 0; i < last; i++) {
+            long high = PusherHistogram.highestValue(i);
+            assertEquals(i, PusherHistogram.index(high));
+            assertEquals(i + 1, PusherHistogram.index(high + 1));
+        }
+        assertEquals(Long.MAX_VALUE, PusherHistogram.highestValue(last));
+    }
+
+    @Test
+    public void percentilesAreWithinThePrecision() {
+        PusherHistogram histogram = new PusherHistogram();
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value * 1000);
+        }
+        for (double percentile : new double[]{1, 25, 50, 90, 99, 99.9, 99.99}) {
+            long expected = (long) Math.ceil(percentile / 100 * 100_000) * 1000;
+            long actual = histogram.getValueAtPercentile(percentile);
+            assertTrue(percentile + ": " + actual, actual >= expected && actual - expected < expected / 32);
+        }
+        assertEquals(100_000_000, histogram.getValueAtPercentile(100));
+        assertEquals(1000, histogram.getMin());
+        // 1000 is in the bucket [992, 1007]
+        assertEquals(1007, histogram.getValueAtPercentile(0));
+    }
+
+    @Test
+    public void countMinMaxMeanAndReset() {
+        PusherHistogram histogram = new PusherHistogram();
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        histogram.record(10);
+        histogram.record(-5);
+        histogram.record(5000);
+        assertEquals(3, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(5000, histogram.getMax());
+        assertEquals(5010 / 3.0, histogram.getMean(), 0.001);
+        // the highest value of the bucket is capped by the max
+        assertEquals(5000, histogram.getValueAtPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        histogram.record(42);
+        assertEquals(42, histogram.getMin());
+        assertEquals(42, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void recordsConcurrently() throws Exception {
+        PusherHistogram histogram = new PusherHistogram();
+        CompletableFuture<?>[] writers = new CompletableFuture<?>[4];
+        for (int i = 0; i < writers.length; i++) {
+            final long offset = i;
+            writers[i] = CompletableFuture.runAsync(() -> {
+                for (long value = 1; value <= 100_000; value++) {
+                    histogram.record(value * 4 + offset);
+                }
+            });
+        }
+        CompletableFuture.allOf(writers).get(10, TimeUnit.SECONDS);
+        assertEquals(400_000, histogram.getCount());
+        assertEquals(4, histogram.getMin());
+        assertEquals(400_003, histogram.getMax());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidPercentiles() {
+        new PusherHistogram().getValueAtPercentile(100.1);
+    }
+}
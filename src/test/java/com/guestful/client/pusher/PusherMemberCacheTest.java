@@ -0,0 +1,90 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.JsonArray;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class PusherMemberCacheTest {
+
+    private PusherSimulator simulator;
+    private Pusher pusher;
+    private PusherMemberCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new PusherSimulator();
+        pusher = new Pusher(simulator.getUrl());
+        cache = new PusherMemberCache(1, TimeUnit.MINUTES, 10);
+        pusher.setMemberCache(cache);
+    }
+
+    @After
+    public void tearDown() {
+        pusher.close();
+        simulator.close();
+    }
+
+    @Test
+    public void sharesFetchesAndAppliesNotifications() throws Exception {
+        simulator.setMembers("presence-restaurant-1", "a", "b").setLatency(200, 200, TimeUnit.MILLISECONDS);
+        CompletableFuture<JsonArray> first = pusher.getChannel("presence-restaurant-1").getMembersAsync();
+        CompletableFuture<JsonArray> second = pusher.getChannel("presence-restaurant-1").getMembersAsync();
+        assertSame(first, second);
+        assertEquals(2, first.get(5, TimeUnit.SECONDS).size());
+
+        cache.memberAdded("presence-restaurant-1", "c");
+        cache.memberRemoved("presence-restaurant-1", "a");
+        JsonArray members = pusher.getChannel("presence-restaurant-1").getMembers();
+        assertEquals(2, members.size());
+        assertEquals("b", members.getJsonObject(0).getString("id"));
+        assertEquals("c", members.getJsonObject(1).getString("id"));
+        assertEquals(1, simulator.getRequestCount());
+    }
+
+    @Test
+    public void doesNotCacheFetchesOverlappingNotifications() throws Exception {
+        simulator.setMembers("presence-restaurant-1", "a", "b").setLatency(300, 300, TimeUnit.MILLISECONDS);
+        CompletableFuture<JsonArray> stale = pusher.getChannel("presence-restaurant-1").getMembersAsync();
+        Thread.sleep(100);
+        // the request has been answered before the member left
+        cache.memberRemoved("presence-restaurant-1", "a");
+        simulator.setMembers("presence-restaurant-1", "b");
+        assertEquals(2, stale.get(5, TimeUnit.SECONDS).size());
+        assertEquals(0, cache.size());
+
+        simulator.setLatency(0, 0, TimeUnit.MILLISECONDS);
+        JsonArray members = pusher.getChannel("presence-restaurant-1").getMembers();
+        assertEquals(1, members.size());
+        assertEquals("b", members.getJsonObject(0).getString("id"));
+        assertEquals(1, cache.size());
+    }
+
+}
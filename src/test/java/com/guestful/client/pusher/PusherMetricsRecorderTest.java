@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class PusherMetricsRecorderTest {
+
+    private static final JsonObject DATA = Json.createObjectBuilder().add("table", "12").build();
+
+    private PusherSimulator simulator;
+    private Pusher pusher;
+    private PusherMetricsRecorder recorder;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new PusherSimulator();
+        pusher = new Pusher(simulator.getUrl());
+        recorder = new PusherMetricsRecorder();
+        pusher.setMetrics(recorder);
+    }
+
+    @After
+    public void tearDown() {
+        pusher.close();
+        simulator.close();
+    }
+
+    @Test
+    public void groupsTheRequestsPerEndpoint() {
+        simulator.setMembers("presence-restaurant-1", "a", "b");
+        for (int i = 0; i < 3; i++) {
+            pusher.getChannel("private-floor-" + i).publish("table-updated", DATA);
+        }
+        pusher.getChannel("private-floor-1").getInfo();
+        pusher.getChannel("private-floor-2").getInfo();
+        pusher.getChannel("presence-restaurant-1").getMembers();
+
+        Map<String, PusherHistogram> roundTrips = recorder.getRoundTrips();
+        assertEquals("[GET channels/{name}, GET channels/{name}/users, POST events]", roundTrips.keySet().toString());
+        assertEquals(3, roundTrips.get("POST events").getCount());
+        assertEquals(2, roundTrips.get("GET channels/{name}").getCount());
+        assertEquals(1, roundTrips.get("GET channels/{name}/users").getCount());
+        assertTrue(roundTrips.get("POST events").getMin() > 0);
+        assertEquals(6L, (long) recorder.getStatusCounts().get(200));
+        assertEquals(6, recorder.getRequestSigning().getCount());
+        // only the events have a body
+        assertEquals(3, recorder.getPayloads().getCount());
+        assertTrue(recorder.getBytesSent() > 0);
+    }
+
+    @Test
+    public void countsTheThrottledRequests() {
+        pusher.getChannel("private-floor-1").publish("table-updated", DATA);
+        simulator.setThrottleRate(1);
+        for (int i = 0; i < 2; i++) {
+            try {
+                pusher.getChannel("private-floor-1").publish("table-updated", DATA);
+                fail();
+            } catch (PusherException e) {
+                assertEquals(429, e.getStatus());
+            }
+        }
+        assertEquals("{200=1, 429=2}", recorder.getStatusCounts().toString());
+        assertEquals(3, recorder.getRoundTrips().get("POST events").getCount());
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class PusherOccupancyTest {
+
+    private static final JsonObject DATA = Json.createObjectBuilder().add("table", "12").build();
+
+    private PusherSimulator simulator;
+    private Pusher pusher;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new PusherSimulator();
+        pusher = new Pusher(simulator.getUrl());
+    }
+
+    @After
+    public void tearDown() {
+        pusher.close();
+        simulator.close();
+    }
+
+    @Test
+    public void skipsVacantChannels() throws Exception {
+        simulator.setSubscriptionCount("private-floor-1", 2).setMembers("presence-restaurant-1", "a");
+        PusherOccupancy occupancy = new PusherOccupancy(1, TimeUnit.SECONDS, 100);
+        pusher.setOccupancy(occupancy);
+        assertEquals(2, occupancy.bootstrap(pusher, null));
+
+        PusherPublishResult result = pusher.publish(Arrays.asList("private-floor-1", "private-floor-2", "presence-restaurant-1"), "closing", DATA);
+        assertEquals(3, result.getPublished().size());
+        pusher.getChannel("private-floor-2").publish("closing", DATA);
+        assertEquals(2, simulator.getPublishedCount());
+        assertEquals(2, occupancy.getSkipped());
+        assertEquals(1, occupancy.getSkippedRequests());
+
+        occupancy.onChannelOccupied(event("channel_occupied", "private-floor-2"));
+        occupancy.onChannelVacated(event("channel_vacated", "private-floor-1"));
+        assertEquals(PusherOccupancy.State.OCCUPIED, occupancy.getState("private-floor-2"));
+        assertEquals(PusherOccupancy.State.VACANT, occupancy.getState("private-floor-1"));
+
+        // the states are not trusted after the TTL
+        Thread.sleep(1100);
+        assertEquals(PusherOccupancy.State.UNKNOWN, occupancy.getState("private-floor-1"));
+        assertEquals(PusherOccupancy.State.UNKNOWN, occupancy.getState("private-floor-3"));
+        pusher.getChannel("private-floor-3").publish("closing", DATA);
+        occupancy.setPublishUnknown(false);
+        pusher.getChannel("private-floor-4").publish("closing", DATA);
+        assertEquals(3, simulator.getPublishedCount());
+        assertEquals(1, occupancy.getUnknown());
+    }
+
+    @Test
+    public void neverSkipsServerToUserChannels() {
+        PusherOccupancy occupancy = new PusherOccupancy(1, TimeUnit.MINUTES, 100);
+        occupancy.setPublishUnknown(false);
+        occupancy.bootstrap(pusher, null);
+        pusher.setOccupancy(occupancy);
+
+        pusher.sendToUser("42", "logout", DATA);
+        pusher.sendToUsers(Arrays.asList("1", "2"), "logout", DATA);
+        pusher.publish(Arrays.asList("private-floor-1", "#server-to-user-3"), "logout", DATA);
+
+        assertEquals(4, simulator.getPublishedCount());
+        assertEquals(1, simulator.getEvents("#server-to-user-3").size());
+        assertEquals(1, occupancy.getSkipped());
+        assertEquals(0, occupancy.getUnknown());
+    }
+
+    @Test
+    public void refusesBootstrapsLargerThanTheRegistry() {
+        simulator.setSubscriptionCount("private-floor-1", 1).setSubscriptionCount("private-floor-2", 1).setSubscriptionCount("private-floor-3", 1);
+        PusherOccupancy occupancy = new PusherOccupancy(1, TimeUnit.MINUTES, 2);
+        try {
+            occupancy.bootstrap(pusher, "private-");
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(PusherOccupancy.State.UNKNOWN, occupancy.getState("private-floor-" + i));
+        }
+        assertEquals(PusherOccupancy.State.UNKNOWN, occupancy.getState("private-floor-4"));
+    }
+
+    @Test
+    public void evictingAnOccupiedChannelForgetsTheBootstraps() {
+        simulator.setSubscriptionCount("private-floor-1", 1).setSubscriptionCount("private-floor-2", 1);
+        PusherOccupancy occupancy = new PusherOccupancy(1, TimeUnit.MINUTES, 3);
+        occupancy.bootstrap(pusher, null);
+        assertEquals(PusherOccupancy.State.VACANT, occupancy.getState("private-floor-3"));
+
+        occupancy.onChannelOccupied(event("channel_occupied", "private-floor-3"));
+        occupancy.onChannelOccupied(event("channel_occupied", "private-floor-4"));
+
+        assertEquals(3, occupancy.size());
+        // private-floor-1 was evicted: it must not be considered vacant
+        assertEquals(PusherOccupancy.State.UNKNOWN, occupancy.getState("private-floor-1"));
+        assertEquals(PusherOccupancy.State.UNKNOWN, occupancy.getState("private-floor-5"));
+        assertEquals(PusherOccupancy.State.OCCUPIED, occupancy.getState("private-floor-4"));
+    }
+
+    private static PusherWebhookEvent event(String name, String channel) {
+        return new PusherWebhookEvent(System.currentTimeMillis(), name, channel, null, null, null, null);
+    }
+
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class PusherOrderedPublisherTest {
+
+    private PusherSimulator simulator;
+    private Pusher pusher;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new PusherSimulator();
+        pusher = new Pusher(simulator.getUrl());
+    }
+
+    @After
+    public void tearDown() {
+        pusher.close();
+        simulator.close();
+    }
+
+    @Test
+    public void keepsTheOrderOfEachSubmitterPerChannel() throws Exception {
+        final int submitters = 8;
+        final int events = 50;
+        final int channels = 5;
+        simulator.setLatency(0, 3, TimeUnit.MILLISECONDS);
+        final PusherOrderedPublisher publisher = new PusherOrderedPublisher(pusher, 3, "seq");
+        ExecutorService threads = Executors.newFixedThreadPool(submitters);
+        try {
+            List<Future<List<CompletableFuture<Void>>>> submitted = new ArrayList<>();
+            for (int t = 0; t < submitters; t++) {
+                final int submitter = t;
+                submitted.add(threads.submit(() -> {
+                    List<CompletableFuture<Void>> futures = new ArrayList<>();
+                    for (int i = 0; i < events; i++) {
+                        JsonObject data = Json.createObjectBuilder().add("submitter", submitter).add("index", i).build();
+                        futures.add(publisher.publish("private-floor-" + (i % channels), "table-updated", data));
+                    }
+                    return futures;
+                }));
+            }
+            for (Future<List<CompletableFuture<Void>>> future : submitted) {
+                for (CompletableFuture<Void> published : future.get(10, TimeUnit.SECONDS)) {
+                    published.get(10, TimeUnit.SECONDS);
+                }
+            }
+        } finally {
+            threads.shutdown();
+            publisher.close();
+        }
+
+        assertEquals(submitters * events, simulator.getPublishedCount());
+        for (int c = 0; c < channels; c++) {
+            String channel = "private-floor-" + c;
+            Map<Integer, Integer> last = new HashMap<>();
+            List<PusherSimulator.Event> received = simulator.getEvents(channel);
+            assertEquals(submitters * events / channels, received.size());
+            for (int i = 0; i < received.size(); i++) {
+                JsonObject data = Json.createReader(new StringReader(received.get(i).getData())).readObject();
+                assertEquals(i + 1, data.getInt("seq"));
+                Integer previous = last.put(data.getInt("submitter"), data.getInt("index"));
+                assertTrue(channel + ": " + previous + " then " + data.getInt("index"), previous == null || previous < data.getInt("index"));
+            }
+            assertEquals(received.size(), publisher.getSequence(channel));
+        }
+        assertEquals(0, publisher.getPending());
+    }
+
+    @Test
+    public void failuresDoNotStopTheFollowingEvents() throws Exception {
+        PusherOrderedPublisher publisher = new PusherOrderedPublisher(pusher, 1, "seq");
+        try {
+            publisher.publish("private-floor-1", "table-updated", Json.createObjectBuilder().add("table", 1).build()).get(5, TimeUnit.SECONDS);
+            simulator.setErrorRate(1);
+            try {
+                publisher.publish("private-floor-1", "table-updated", Json.createObjectBuilder().add("table", 2).build()).get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException ignored) {
+            }
+            simulator.setErrorRate(0);
+            publisher.publish("private-floor-1", "table-updated", Json.createObjectBuilder().add("table", 3).build()).get(5, TimeUnit.SECONDS);
+        } finally {
+            publisher.close();
+        }
+        List<PusherSimulator.Event> received = simulator.getEvents("private-floor-1");
+        assertEquals(2, received.size());
+        // the gap tells subscribers an event was missed
+        assertEquals(3, Json.createReader(new StringReader(received.get(1).getData())).readObject().getInt("seq"));
+
+        publisher.resetSequence("private-floor-1");
+        assertEquals(0, publisher.getSequence("private-floor-1"));
+    }
+
+    @Test
+    public void closingWaitsForTheSubmittedEvents() throws Exception {
+        simulator.setLatency(50, 50, TimeUnit.MILLISECONDS);
+        PusherOrderedPublisher publisher = new PusherOrderedPublisher(pusher, 2);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(publisher.publish("private-floor-1", "table-updated", Json.createObjectBuilder().add("table", i).build()));
+        }
+        publisher.close();
+        for (CompletableFuture<Void> future : futures) {
+            assertTrue(future.isDone() && !future.isCompletedExceptionally());
+        }
+        assertEquals(4, simulator.getPublishedCount());
+        try {
+            publisher.publish("private-floor-1", "table-updated", Json.createObjectBuilder().build()).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+}
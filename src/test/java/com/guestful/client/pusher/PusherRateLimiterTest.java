@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class PusherRateLimiterTest {
+
+    private static final JsonObject DATA = Json.createObjectBuilder().add("table", "12").build();
+
+    private PusherSimulator simulator;
+    private Pusher pusher;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new PusherSimulator();
+        pusher = new Pusher(simulator.getUrl());
+    }
+
+    @After
+    public void tearDown() {
+        pusher.close();
+        simulator.close();
+    }
+
+    @Test
+    public void limitsTheRate() throws Exception {
+        pusher.setRateLimiter(new PusherRateLimiter(20, 1, 100, PusherBackpressure.BLOCK));
+        long start = System.nanoTime();
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[11];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = pusher.getChannel("private-floor-1").publishAsync("closing", DATA);
+        }
+        CompletableFuture.allOf(futures).get(5, TimeUnit.SECONDS);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("sent in " + elapsed + "ms", elapsed >= 450);
+        assertEquals(11, simulator.getPublishedCount());
+    }
+
+    @Test
+    public void sendsHigherPrioritiesFirst() throws Exception {
+        PusherRateLimiter limiter = new PusherRateLimiter(10, 1, 100, PusherBackpressure.BLOCK);
+        pusher.setRateLimiter(limiter);
+        // takes the only token
+        pusher.getChannel("private-floor-1").publish("first", DATA);
+        CompletableFuture<Void> low = pusher.getChannel("private-floor-1").publishAsync("low", DATA, PusherPriority.BEST_EFFORT);
+        CompletableFuture<Void> high = pusher.getChannel("private-floor-1").publishAsync("high", DATA, PusherPriority.CRITICAL);
+        CompletableFuture.allOf(low, high).get(5, TimeUnit.SECONDS);
+        assertEquals("high", simulator.getEvents("private-floor-1").get(1).getName());
+    }
+
+    @Test
+    public void slowDownsOnThrottling() throws Exception {
+        PusherRateLimiter limiter = new PusherRateLimiter(100, 10, 100, PusherBackpressure.BLOCK);
+        pusher.setRateLimiter(limiter);
+        simulator.setThrottleRate(1);
+        try {
+            pusher.getChannel("private-floor-1").publish("closing", DATA);
+            fail();
+        } catch (PusherException e) {
+            assertEquals(429, e.getStatus());
+        }
+        assertEquals(1, limiter.getThrottled());
+        assertEquals(50, limiter.getRate(), 1);
+        simulator.setThrottleRate(0);
+        pusher.getChannel("private-floor-1").publish("closing", DATA);
+        assertTrue(limiter.getRate() > 50);
+    }
+
+    @Test
+    public void refusesRequestsWhenTheLaneIsFull() throws Exception {
+        PusherRateLimiter limiter = new PusherRateLimiter(1, 1, 1, PusherBackpressure.FAIL_FAST);
+        pusher.setRateLimiter(limiter);
+        pusher.getChannel("private-floor-1").publish("first", DATA);
+        CompletableFuture<Void> queued = pusher.getChannel("private-floor-1").publishAsync("second", DATA);
+        CompletableFuture<Void> refused = pusher.getChannel("private-floor-1").publishAsync("third", DATA);
+        assertRejected(refused);
+        assertEquals(1, limiter.getDropped());
+        queued.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void blockingRequestsDoNotDelayTheNextOnes() throws Exception {
+        PusherRateLimiter limiter = new PusherRateLimiter(20, 1, 100, PusherBackpressure.BLOCK);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Void> blocked = new CompletableFuture<>();
+        CompletableFuture<Void> next = new CompletableFuture<>();
+        try {
+            limiter.submit(PusherPriority.NORMAL, () -> {
+            }, new CompletableFuture<>());
+            limiter.submit(PusherPriority.NORMAL, () -> {
+                try {
+                    release.await();
+                    blocked.complete(null);
+                } catch (InterruptedException e) {
+                    blocked.completeExceptionally(e);
+                }
+            }, blocked);
+            limiter.submit(PusherPriority.NORMAL, () -> next.complete(null), next);
+            next.get(5, TimeUnit.SECONDS);
+            assertTrue(!blocked.isDone());
+        } finally {
+            release.countDown();
+            limiter.close();
+        }
+        blocked.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void closingThePusherRejectsQueuedRequests() throws Exception {
+        PusherRateLimiter limiter = new PusherRateLimiter(1, 1, 100, PusherBackpressure.BLOCK);
+        pusher.setRateLimiter(limiter);
+        pusher.getChannel("private-floor-1").publish("first", DATA);
+        CompletableFuture<Void> queued = pusher.getChannel("private-floor-1").publishAsync("second", DATA);
+        pusher.close();
+        assertRejected(queued);
+        CompletableFuture<Void> late = new CompletableFuture<>();
+        limiter.submit(PusherPriority.NORMAL, () -> late.complete(null), late);
+        assertRejected(late);
+        assertEquals(1, simulator.getPublishedCount());
+    }
+
+    private static void assertRejected(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            while (!(cause instanceof RejectedExecutionException) && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            assertTrue(String.valueOf(e.getCause()), cause instanceof RejectedExecutionException);
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class PusherRouterTest {
+
+    private static final JsonObject DATA = Json.createObjectBuilder().add("table", "12").build();
+
+    @Test
+    public void publishesOnTheAppOwningEachChannel() throws Exception {
+        List<PusherSimulator> simulators = Arrays.asList(
+            new PusherSimulator("1", "key1", "secret1"),
+            new PusherSimulator("2", "key2", "secret2"),
+            new PusherSimulator("3", "key3", "secret3"));
+        PusherRouter router = new PusherRouter();
+        for (PusherSimulator simulator : simulators) {
+            router.addApp(new Pusher(simulator.getUrl()), 1);
+        }
+        try {
+            List<String> channels = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                channels.add("private-restaurant-" + i);
+            }
+            PusherPublishResult result = router.publish(channels, "closing", DATA);
+            assertEquals(30, result.getPublished().size());
+            assertTrue(result.getFailures().isEmpty());
+            int published = 0;
+            for (PusherSimulator simulator : simulators) {
+                published += simulator.getPublishedCount();
+                for (PusherSimulator.Event event : simulator.getEvents()) {
+                    assertEquals(router.getApp(event.getChannel()).getAppId(), appId(simulator));
+                }
+            }
+            assertEquals(30, published);
+            assertEquals("key" + router.getApp("private-restaurant-1").getAppId(), router.getKey("private-restaurant-1"));
+        } finally {
+            router.close();
+            for (PusherSimulator simulator : simulators) {
+                simulator.close();
+            }
+        }
+    }
+
+    @Test
+    public void movesOnlyTheChannelsOfTheChangedApp() {
+        PusherRouter router = new PusherRouter(Arrays.asList(app("1"), app("2"), app("3")));
+        try {
+            Map<String, String> before = owners(router);
+            router.removeApp("3");
+            Map<String, String> after = owners(router);
+            for (Map.Entry<String, String> entry : before.entrySet()) {
+                if (!entry.getValue().equals("3")) {
+                    assertEquals(entry.getValue(), after.get(entry.getKey()));
+                }
+            }
+
+            router.addApp(app("4"), 1);
+            int moved = 0;
+            for (Map.Entry<String, String> entry : owners(router).entrySet()) {
+                if (!entry.getValue().equals(after.get(entry.getKey()))) {
+                    assertEquals("4", entry.getValue());
+                    moved++;
+                }
+            }
+            assertTrue("moved " + moved, moved > 2000 && moved < 4500);
+        } finally {
+            router.close();
+        }
+    }
+
+    @Test
+    public void spreadsChannelsByWeight() {
+        PusherRouter router = new PusherRouter().addApp(app("1"), 3).addApp(app("2"), 1);
+        try {
+            int first = 0;
+            for (String owner : owners(router).values()) {
+                if (owner.equals("1")) {
+                    first++;
+                }
+            }
+            assertTrue("first app owns " + first, first > 6500 && first < 8500);
+        } finally {
+            router.close();
+        }
+    }
+
+    @Test
+    public void refusesLookupsWithoutApps() {
+        try {
+            new PusherRouter().getApp("private-restaurant-1");
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    private static Map<String, String> owners(PusherRouter router) {
+        Map<String, String> owners = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            String channel = "private-restaurant-" + i;
+            owners.put(channel, router.getApp(channel).getAppId());
+        }
+        return owners;
+    }
+
+    private static Pusher app(String id) {
+        return new Pusher("http://key" + id + ":secret" + id + "@127.0.0.1:1/apps/" + id);
+    }
+
+    private static String appId(PusherSimulator simulator) {
+        String url = simulator.getUrl();
+        return url.substring(url.lastIndexOf('/') + 1);
+    }
+
+}
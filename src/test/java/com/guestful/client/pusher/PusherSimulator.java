@@ -0,0 +1,604 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process implementation of the Pusher REST API used by this client, listening on the loopback interface.
+ * <p>
+ * Requests are authenticated like Pusher does: the key, the timestamp (600 seconds of tolerance), the body MD5 and the
+ * signature are verified and a 401 is returned on mismatch. Latency, server errors and 429 responses can be injected.
+ * Published events are recorded for assertions.
+ * <p>
+ * Supported endpoints: <code>POST events</code>, <code>POST batch_events</code>, <code>GET channels</code>,
+ * <code>GET channels/{name}</code> and <code>GET channels/{name}/users</code>. Channel occupancy is set with
+ * {@link #setSubscriptionCount(String, int)} and {@link #setMembers(String, String...)}.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class PusherSimulator implements AutoCloseable {
+
+    private static final Logger LOGGER = Logger.getLogger(PusherSimulator.class.getName());
+    private static final long TIMESTAMP_TOLERANCE_SECONDS = 600;
+    private static final Pattern TERMINATE_CONNECTIONS = Pattern.compile("users/([^/]+)/terminate_connections");
+
+    static {
+        // without it the response body waits for the delayed ACK of the headers
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final String appId;
+    private final String key;
+    private final String secret;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    private final ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<String> terminated = new ConcurrentLinkedQueue<>();
+    private final ConcurrentMap<String, Integer> subscriptions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, List<String>> members = new ConcurrentHashMap<>();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder published = new LongAdder();
+    private final AtomicLong resetAt = new AtomicLong(System.nanoTime());
+
+    private volatile long minLatencyNanos;
+    private volatile long maxLatencyNanos;
+    private final AtomicLong nextLatencyNanos = new AtomicLong(-1);
+    private volatile double errorRate;
+    private volatile double throttleRate;
+
+    public PusherSimulator() throws IOException {
+        this("42", "278d425bdf160c739803", "7ad3773142a6692b25b8");
+    }
+
+    public PusherSimulator(String appId, String key, String secret) throws IOException {
+        this.appId = appId;
+        this.key = key;
+        this.secret = secret;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        this.executor = Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors()), r -> {
+            Thread t = new Thread(r, "pusher-simulator");
+            t.setDaemon(true);
+            return t;
+        });
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pusher-simulator-latency");
+            t.setDaemon(true);
+            return t;
+        });
+        this.server.createContext("/apps/" + appId + "/", this::handle);
+        this.server.setExecutor(executor);
+        this.server.start();
+    }
+
+    /**
+     * @return the Pusher url to give to {@link Pusher#Pusher(String)}
+     */
+    public String getUrl() {
+        return "http://" + key + ":" + secret + "@127.0.0.1:" + server.getAddress().getPort() + "/apps/" + appId;
+    }
+
+    /**
+     * Delay each response by a random duration between the given bounds
+     */
+    public PusherSimulator setLatency(long min, long max, TimeUnit unit) {
+        if (min < 0 || max < min) {
+            throw new IllegalArgumentException("Invalid latency bounds: " + min + " - " + max);
+        }
+        this.minLatencyNanos = unit.toNanos(min);
+        this.maxLatencyNanos = unit.toNanos(max);
+        return this;
+    }
+
+    /**
+     * Answer the next request after the given delay instead of the configured latency, i.e. to simulate a slow request
+     */
+    public PusherSimulator setNextLatency(long latency, TimeUnit unit) {
+        nextLatencyNanos.set(unit.toNanos(latency));
+        return this;
+    }
+
+    /**
+     * @param errorRate the probability, between 0 and 1, of answering a request with a 500
+     */
+    public PusherSimulator setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * @param throttleRate the probability, between 0 and 1, of answering a request with a 429
+     */
+    public PusherSimulator setThrottleRate(double throttleRate) {
+        this.throttleRate = throttleRate;
+        return this;
+    }
+
+    public PusherSimulator setSubscriptionCount(String channel, int count) {
+        if (count == 0) {
+            subscriptions.remove(channel);
+        } else {
+            subscriptions.put(channel, count);
+        }
+        return this;
+    }
+
+    /**
+     * Set the users of a presence channel
+     */
+    public PusherSimulator setMembers(String channel, String... userIds) {
+        if (userIds.length == 0) {
+            members.remove(channel);
+        } else {
+            members.put(channel, Collections.unmodifiableList(new ArrayList<>(Arrays.asList(userIds))));
+        }
+        return this;
+    }
+
+    /**
+     * @return the events accepted so far, one per channel they were published on
+     */
+    public List<Event> getEvents() {
+        return new ArrayList<>(events);
+    }
+
+    public List<Event> getEvents(String channel) {
+        List<Event> list = new ArrayList<>();
+        for (Event event : events) {
+            if (event.channel.equals(channel)) {
+                list.add(event);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @return the events sent to the connections of a user
+     */
+    public List<Event> getUserEvents(String userId) {
+        return getEvents(Pusher.SERVER_TO_USER_PREFIX + userId);
+    }
+
+    /**
+     * @return the ids of the users whose connections were terminated, in order
+     */
+    public List<String> getTerminatedUsers() {
+        return new ArrayList<>(terminated);
+    }
+
+    /**
+     * @return the number of HTTP requests received
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * @return the number of requests refused because of their authentication
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the number of injected 500 responses
+     */
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    /**
+     * @return the number of injected 429 responses
+     */
+    public long getThrottledCount() {
+        return throttled.sum();
+    }
+
+    /**
+     * @return the number of events accepted, one per channel they were published on
+     */
+    public long getPublishedCount() {
+        return published.sum();
+    }
+
+    /**
+     * @return the number of events accepted per second since the creation of the simulator or the last {@link #reset()}
+     */
+    public double getPublishedPerSecond() {
+        long elapsed = System.nanoTime() - resetAt.get();
+        return elapsed == 0 ? 0 : published.sum() * 1_000_000_000D / elapsed;
+    }
+
+    /**
+     * Clear the recorded events and the counters
+     */
+    public void reset() {
+        events.clear();
+        terminated.clear();
+        requests.reset();
+        rejected.reset();
+        errors.reset();
+        throttled.reset();
+        published.reset();
+        resetAt.set(System.nanoTime());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.increment();
+        int status;
+        String response;
+        try {
+            byte[] body = readAll(exchange.getRequestBody());
+            // the path is signed as sent, with its segments encoded
+            String path = exchange.getRequestURI().getRawPath();
+            Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+            String error = authenticate(exchange.getRequestMethod(), path, params, body);
+            double dice = ThreadLocalRandom.current().nextDouble();
+            if (error != null) {
+                rejected.increment();
+                status = 401;
+                response = error;
+            } else if (dice < throttleRate) {
+                throttled.increment();
+                status = 429;
+                response = "Too many requests";
+            } else if (dice < throttleRate + errorRate) {
+                errors.increment();
+                status = 500;
+                response = "Internal server error";
+            } else {
+                status = 200;
+                response = dispatch(exchange.getRequestMethod(), path.substring(("/apps/" + appId + "/").length()), params, body);
+                if (response == null) {
+                    status = 404;
+                    response = "Not found";
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Bad request: " + e.getMessage(), e);
+            status = 400;
+            response = String.valueOf(e.getMessage());
+        }
+        long latency = nextLatencyNanos.getAndSet(-1);
+        if (latency < 0) {
+            latency = minLatencyNanos == maxLatencyNanos ? minLatencyNanos : ThreadLocalRandom.current().nextLong(minLatencyNanos, maxLatencyNanos + 1);
+        }
+        final int s = status;
+        final byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        if (latency == 0) {
+            respond(exchange, s, bytes);
+        } else {
+            scheduler.schedule(() -> respond(exchange, s, bytes), latency, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private String authenticate(String method, String path, Map<String, String> params, byte[] body) {
+        if (!key.equals(params.get("auth_key"))) {
+            return "Unknown auth_key";
+        }
+        if (!"1.0".equals(params.get("auth_version"))) {
+            return "Unsupported auth_version";
+        }
+        String timestamp = params.get("auth_timestamp");
+        if (timestamp == null || Math.abs(System.currentTimeMillis() / 1000 - Long.parseLong(timestamp)) > TIMESTAMP_TOLERANCE_SECONDS) {
+            return "Timestamp expired: " + timestamp;
+        }
+        if (body.length > 0 && !hex(digest("MD5", body)).equals(params.get("body_md5"))) {
+            return "Invalid body_md5";
+        }
+        StringBuilder toSign = new StringBuilder(method).append('\n').append(path).append('\n');
+        boolean first = true;
+        for (Map.Entry<String, String> entry : new TreeMap<>(params).entrySet()) {
+            if (!entry.getKey().equals("auth_signature")) {
+                if (!first) {
+                    toSign.append('&');
+                }
+                first = false;
+                toSign.append(entry.getKey()).append('=').append(entry.getValue());
+            }
+        }
+        String expected = hex(hmac(toSign.toString().getBytes(StandardCharsets.UTF_8)));
+        String actual = params.get("auth_signature");
+        if (actual == null || !MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII), actual.getBytes(StandardCharsets.US_ASCII))) {
+            return "Invalid signature: expected HMAC SHA256 hex digest of " + toSign;
+        }
+        return null;
+    }
+
+    private String dispatch(String method, String endpoint, Map<String, String> params, byte[] body) {
+        if (method.equals("POST") && endpoint.equals("events")) {
+            accept(Json.createReader(new StringReader(new String(body, StandardCharsets.UTF_8))).readObject());
+            return "{}";
+        }
+        if (method.equals("POST") && endpoint.equals("batch_events")) {
+            JsonArray batch = Json.createReader(new StringReader(new String(body, StandardCharsets.UTF_8))).readObject().getJsonArray("batch");
+            for (JsonValue event : batch) {
+                accept((JsonObject) event);
+            }
+            return "{}";
+        }
+        if (method.equals("GET") && endpoint.equals("channels")) {
+            return listChannels(params.get("filter_by_prefix"), params.get("info"));
+        }
+        if (method.equals("GET") && endpoint.startsWith("channels/") && endpoint.endsWith("/users")) {
+            return listMembers(decode(endpoint.substring("channels/".length(), endpoint.length() - "/users".length())));
+        }
+        if (method.equals("GET") && endpoint.startsWith("channels/")) {
+            return channelInfo(decode(endpoint.substring("channels/".length())), params.get("info"));
+        }
+        Matcher terminate = TERMINATE_CONNECTIONS.matcher(endpoint);
+        if (method.equals("POST") && terminate.matches()) {
+            terminated.add(decode(terminate.group(1)));
+            return "{}";
+        }
+        return null;
+    }
+
+    private void accept(JsonObject event) {
+        String name = event.getString("name");
+        String data = event.getString("data");
+        String socketId = event.containsKey("socket_id") ? event.getString("socket_id") : null;
+        List<String> channels = new ArrayList<>();
+        if (event.containsKey("channels")) {
+            for (JsonValue channel : event.getJsonArray("channels")) {
+                channels.add(((JsonString) channel).getString());
+            }
+        } else {
+            channels.add(event.getString("channel"));
+        }
+        if (channels.isEmpty() || channels.size() > Pusher.MAX_CHANNELS_PER_EVENT) {
+            throw new IllegalArgumentException("Invalid number of channels: " + channels.size());
+        }
+        for (String channel : channels) {
+            if (channel.startsWith("#") && (!channel.startsWith(Pusher.SERVER_TO_USER_PREFIX) || channel.length() == Pusher.SERVER_TO_USER_PREFIX.length())) {
+                throw new IllegalArgumentException("Invalid channel: " + channel);
+            }
+        }
+        for (String channel : channels) {
+            events.add(new Event(channel, name, data, socketId));
+            published.increment();
+        }
+    }
+
+    private String listChannels(String prefix, String info) {
+        Set<String> attributes = info == null ? Collections.emptySet() : new HashSet<>(Arrays.asList(info.split(",")));
+        if (attributes.contains(PusherChannelInfo.USER_COUNT) && (prefix == null || !prefix.startsWith("presence-"))) {
+            throw new IllegalArgumentException("user_count is only available for presence channels");
+        }
+        JsonObjectBuilder channels = Json.createObjectBuilder();
+        for (String channel : occupiedChannels()) {
+            if (prefix == null || channel.startsWith(prefix)) {
+                JsonObjectBuilder attrs = Json.createObjectBuilder();
+                if (attributes.contains(PusherChannelInfo.USER_COUNT)) {
+                    attrs.add(PusherChannelInfo.USER_COUNT, userCount(channel));
+                }
+                channels.add(channel, attrs);
+            }
+        }
+        return Json.createObjectBuilder().add("channels", channels).build().toString();
+    }
+
+    private String channelInfo(String channel, String info) {
+        Set<String> attributes = info == null ? Collections.emptySet() : new HashSet<>(Arrays.asList(info.split(",")));
+        int subscriptionCount = subscriptionCount(channel);
+        JsonObjectBuilder result = Json.createObjectBuilder().add("occupied", subscriptionCount > 0);
+        if (attributes.contains(PusherChannelInfo.SUBSCRIPTION_COUNT)) {
+            result.add(PusherChannelInfo.SUBSCRIPTION_COUNT, subscriptionCount);
+        }
+        if (attributes.contains(PusherChannelInfo.USER_COUNT)) {
+            if (!channel.startsWith("presence-")) {
+                throw new IllegalArgumentException("user_count is only available for presence channels");
+            }
+            result.add(PusherChannelInfo.USER_COUNT, userCount(channel));
+        }
+        return result.build().toString();
+    }
+
+    private String listMembers(String channel) {
+        if (!channel.startsWith("presence-")) {
+            throw new IllegalArgumentException("Users are only available for presence channels");
+        }
+        JsonArrayBuilder users = Json.createArrayBuilder();
+        for (String id : members.getOrDefault(channel, Collections.emptyList())) {
+            users.add(Json.createObjectBuilder().add("id", id));
+        }
+        return Json.createObjectBuilder().add("users", users).build().toString();
+    }
+
+    private Set<String> occupiedChannels() {
+        Set<String> channels = new TreeSet<>(subscriptions.keySet());
+        channels.addAll(members.keySet());
+        return channels;
+    }
+
+    private int userCount(String channel) {
+        return members.getOrDefault(channel, Collections.emptyList()).size();
+    }
+
+    private int subscriptionCount(String channel) {
+        Integer count = subscriptions.get(channel);
+        // each member has at least one connection
+        return Math.max(count == null ? 0 : count, userCount(channel));
+    }
+
+    private byte[] hmac(byte[] input) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+            return mac.doFinal(input);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] bytes) {
+        try {
+            exchange.getResponseHeaders().set("Content-Type", status == 200 ? "application/json" : "text/plain");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Unable to send response: " + e.getMessage(), e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static byte[] digest(String algorithm, byte[] input) {
+        try {
+            return MessageDigest.getInstance(algorithm).digest(input);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new TreeMap<>();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    params.put(decode(pair.substring(0, eq)), decode(pair.substring(eq + 1)));
+                }
+            }
+        }
+        return params;
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * An event received on one channel
+     */
+    public static final class Event {
+        private final String channel;
+        private final String name;
+        private final String data;
+        private final String socketId;
+
+        Event(String channel, String name, String data, String socketId) {
+            this.channel = channel;
+            this.name = name;
+            this.data = data;
+            this.socketId = socketId;
+        }
+
+        public String getChannel() {
+            return channel;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getData() {
+            return data;
+        }
+
+        public String getSocketId() {
+            return socketId;
+        }
+
+        @Override
+        public String toString() {
+            return channel + " " + name + " " + data;
+        }
+    }
+
+}
@@ -0,0 +1,365 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.Json;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Drives the client against {@link PusherSimulator}
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class PusherSimulatorTest {
+
+    private PusherSimulator simulator;
+    private Pusher pusher;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new PusherSimulator();
+        pusher = new Pusher(simulator.getUrl());
+    }
+
+    @After
+    public void tearDown() {
+        pusher.close();
+        simulator.close();
+    }
+
+    @Test
+    public void publish() {
+        pusher.getChannel("private-floor-42").publish("table-updated", Json.createObjectBuilder().add("table", "12").build());
+        List<String> channels = new ArrayList<>();
+        for (int i = 0; i < 150; i++) {
+            channels.add("presence-restaurant-" + i);
+        }
+        PusherPublishResult result = pusher.publish(channels, "closing", Json.createObjectBuilder().build());
+
+        assertTrue(result.isSuccess());
+        assertEquals("[private-floor-42 table-updated {\"table\":\"12\"}]", simulator.getEvents("private-floor-42").toString());
+        assertEquals(151, simulator.getPublishedCount());
+        // fan-out split in chunks of MAX_CHANNELS_PER_EVENT
+        assertEquals(3, simulator.getRequestCount());
+        assertEquals(0, simulator.getRejectedCount());
+    }
+
+    @Test
+    public void publishSerializedData() {
+        String data = "{\"name\":\"Caf\u00e9 \\\"\u263a\\\"\",\n\t\"note\":\"\u0001\ud83c\udf7d\"}";
+        pusher.getChannel("private-floor-42").publish("table-updated", data.getBytes(StandardCharsets.UTF_8));
+        pusher.getChannel("private-floor-43").publish("table-updated", data);
+
+        assertEquals(data, simulator.getEvents("private-floor-42").get(0).getData());
+        assertEquals(data, simulator.getEvents("private-floor-43").get(0).getData());
+    }
+
+    @Test
+    public void publishChunkedData() {
+        pusher.setChunking(true);
+        String data = EventChunksTest.repeat('"', 4000) + EventChunksTest.repeat('\u00e9', 4000) + "\ud83c\udf7d" + EventChunksTest.repeat('x', 4000);
+        pusher.getChannel("private-floor-42").publish("menu", data);
+
+        List<String> chunks = new ArrayList<>();
+        for (PusherSimulator.Event event : simulator.getEvents("private-floor-42")) {
+            assertEquals("chunked-menu", event.getName());
+            assertTrue(EventChunks.size(event.getData()) <= Pusher.MAX_EVENT_DATA_SIZE);
+            chunks.add(event.getData());
+        }
+        assertTrue(chunks.size() > 2);
+        assertEquals(data, EventChunksTest.join(chunks));
+    }
+
+    @Test
+    public void rejectsOversizedDataWithoutChunking() {
+        // 6000 bytes in UTF-8 but 12000 once escaped
+        String data = EventChunksTest.repeat('"', 6000);
+        try {
+            pusher.getChannel("private-floor-42").publish("menu", data);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("12000"));
+        }
+        try {
+            pusher.getChannel("private-floor-42").publish("menu", data.getBytes(StandardCharsets.UTF_8));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("12000"));
+        }
+        assertEquals(0, simulator.getRequestCount());
+    }
+
+    @Test
+    public void sendToUsers() {
+        pusher.sendToUser("mathieu", "reservation-confirmed", Json.createObjectBuilder().add("table", "12").build());
+        PusherPublishResult result = pusher.sendToUsers(Arrays.asList("mathieu", "user/2"), "closing", Json.createObjectBuilder().build());
+
+        assertTrue(result.isSuccess());
+        assertEquals("[#server-to-user-mathieu reservation-confirmed {\"table\":\"12\"}, #server-to-user-mathieu closing {}]", simulator.getUserEvents("mathieu").toString());
+        assertEquals(1, simulator.getUserEvents("user/2").size());
+        assertEquals(0, simulator.getRejectedCount());
+    }
+
+    @Test
+    public void terminateUserConnections() throws Exception {
+        // the id is a single encoded path segment, signed as sent
+        pusher.terminateUserConnections("user/1 \u00e9");
+        pusher.terminateUserConnectionsAsync("mathieu").get(5, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("user/1 \u00e9", "mathieu"), simulator.getTerminatedUsers());
+        assertEquals(0, simulator.getRejectedCount());
+    }
+
+    @Test
+    public void hedgesSlowQueries() {
+        simulator.setSubscriptionCount("private-floor-42", 3);
+        pusher.setHedgeDelay(50, TimeUnit.MILLISECONDS);
+
+        // the hedged request answers before the slow one
+        simulator.setNextLatency(2, TimeUnit.SECONDS);
+        long start = System.nanoTime();
+        assertEquals(3, pusher.getChannel("private-floor-42").getInfo(PusherChannelInfo.SUBSCRIPTION_COUNT).getSubscriptionCount());
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("answered in " + elapsed + "ms", elapsed >= 50 && elapsed < 1000);
+        assertEquals(2, simulator.getRequestCount());
+
+        // a request answering within the delay is not hedged
+        simulator.reset();
+        pusher.getChannel("private-floor-42").getInfo();
+        assertEquals(1, simulator.getRequestCount());
+    }
+
+    @Test
+    public void neverHedgesEvents() {
+        pusher.setHedgeDelay(50, TimeUnit.MILLISECONDS);
+        simulator.setNextLatency(300, TimeUnit.MILLISECONDS);
+        pusher.getChannel("private-floor-42").publish("table-updated", Json.createObjectBuilder().build());
+
+        assertEquals(1, simulator.getRequestCount());
+        assertEquals(1, simulator.getPublishedCount());
+    }
+
+    @Test
+    public void rejectsInvalidSignature() {
+        Pusher impostor = new Pusher(simulator.getUrl().replace(":7ad3773142a6692b25b8@", ":wrong@"));
+        try {
+            impostor.getChannel("private-floor-42").publish("table-updated", Json.createObjectBuilder().build());
+            fail();
+        } catch (PusherException e) {
+            assertEquals(401, e.getStatus());
+        } finally {
+            impostor.close();
+        }
+        assertEquals(1, simulator.getRejectedCount());
+        assertEquals(0, simulator.getPublishedCount());
+    }
+
+    @Test
+    public void queryChannels() {
+        simulator.setMembers("presence-restaurant-1", "a", "b")
+            .setMembers("presence-restaurant-2", "c")
+            .setSubscriptionCount("private-floor-42", 3);
+
+        try (Stream<PusherChannelInfo> channels = pusher.getChannels("presence-", PusherChannelInfo.USER_COUNT)) {
+            assertEquals("[presence-restaurant-1 users: 2, presence-restaurant-2 users: 1]", channels.map(Object::toString).collect(Collectors.toList()).toString());
+        }
+        PusherChannelInfo info = pusher.getChannel("private-floor-42").getInfo(PusherChannelInfo.SUBSCRIPTION_COUNT);
+        assertTrue(info.isOccupied());
+        assertEquals(3, info.getSubscriptionCount());
+        try (Stream<String> members = pusher.getChannel("presence-restaurant-1").streamMembers()) {
+            assertEquals(Arrays.asList("a", "b"), members.collect(Collectors.toList()));
+        }
+        assertEquals(2, pusher.getChannel("presence-restaurant-1").getMembers().size());
+    }
+
+    @Test
+    public void jaxRsTransport() {
+        simulator.setMembers("presence-restaurant-1", "a");
+        Client client = ClientBuilder.newClient();
+        try (Pusher jaxrs = new Pusher(client, simulator.getUrl())) {
+            jaxrs.getChannel("private-floor-42").publish("table-updated", Json.createObjectBuilder().add("table", "12").build());
+            // the prefix must be encoded in the url but not in the signature
+            try (Stream<PusherChannelInfo> channels = jaxrs.getChannels("presence-restaurant &=")) {
+                assertEquals(0, channels.count());
+            }
+            try (Stream<PusherChannelInfo> channels = jaxrs.getChannels("presence-restaurant-")) {
+                assertEquals(1, channels.count());
+            }
+        }
+        assertEquals(1, simulator.getPublishedCount());
+        assertEquals(0, simulator.getRejectedCount());
+        // the client belongs to the caller
+        client.target(simulator.getUrl());
+        client.close();
+    }
+
+    @Test
+    public void encodesChannelNamesInPaths() {
+        simulator.setMembers("presence-floor 1/a%", "a");
+        assertEquals("presence-floor%201%2Fa%25", SignatureUtil.encodePathSegment("presence-floor 1/a%"));
+        assertEquals("presence-a=b@c,d;e", SignatureUtil.encodePathSegment("presence-a=b@c,d;e"));
+        assertEquals(1, pusher.getChannel("presence-floor 1/a%").getMembers().size());
+        assertEquals(0, simulator.getRejectedCount());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void createsAJaxRsClientOnDemand() {
+        Pusher own = new Pusher(simulator.getUrl());
+        Client client = own.getClient();
+        assertSame(client, own.getClient());
+        own.close();
+        try {
+            client.target(simulator.getUrl());
+            fail();
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    @Test
+    public void boundsConcurrentRequests() throws Exception {
+        simulator.setLatency(200, 200, TimeUnit.MILLISECONDS);
+        try (Pusher bounded = new Pusher(new PusherUrlConnectionTransport(1, 1, TimeUnit.SECONDS, 2), simulator.getUrl())) {
+            long start = System.nanoTime();
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                futures.add(bounded.getChannel("private-floor-42").publishAsync("table-updated", Json.createObjectBuilder().add("i", i).build()));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 400);
+        }
+        assertEquals(4, simulator.getPublishedCount());
+    }
+
+    @Test
+    public void dropsTheOldestRequest() throws Exception {
+        simulator.setLatency(300, 300, TimeUnit.MILLISECONDS);
+        pusher.setMaxInFlight(2, PusherBackpressure.DROP_OLDEST);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(pusher.getChannel("private-floor-42").publishAsync("table-updated", Json.createObjectBuilder().add("i", i).build()));
+        }
+        try {
+            futures.get(0).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof RejectedExecutionException);
+            assertEquals("Dropped to make room for a newer Pusher request", e.getCause().getMessage());
+        }
+        futures.get(1).get(5, TimeUnit.SECONDS);
+        futures.get(2).get(5, TimeUnit.SECONDS);
+        List<String> published = new ArrayList<>();
+        for (PusherSimulator.Event event : simulator.getEvents("private-floor-42")) {
+            published.add(event.getData());
+        }
+        assertTrue(published.toString(), published.contains("{\"i\":1}") && published.contains("{\"i\":2}"));
+    }
+
+    @Test
+    public void boundsQueuedRequests() throws Exception {
+        simulator.setLatency(300, 300, TimeUnit.MILLISECONDS);
+        try (Pusher bounded = new Pusher(new PusherUrlConnectionTransport(1, 1, TimeUnit.SECONDS, 1, 1), simulator.getUrl())) {
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                futures.add(bounded.getChannel("private-floor-42").publishAsync("table-updated", Json.createObjectBuilder().add("i", i).build()));
+            }
+            try {
+                futures.get(2).get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof RejectedExecutionException);
+            }
+            futures.get(0).get(5, TimeUnit.SECONDS);
+            futures.get(1).get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(2, simulator.getPublishedCount());
+    }
+
+    @Test
+    public void retriesThrottledRequests() {
+        simulator.setThrottleRate(0.3).setErrorRate(0.1);
+        pusher.setRetryPolicy(new PusherRetryPolicy(30, 1, 5, TimeUnit.MILLISECONDS));
+        for (int i = 0; i < 50; i++) {
+            pusher.getChannel("private-floor-42").publish("table-updated", Json.createObjectBuilder().add("i", i).build());
+        }
+        assertEquals(50, simulator.getPublishedCount());
+        assertEquals(simulator.getRequestCount(), 50 + simulator.getThrottledCount() + simulator.getErrorCount());
+    }
+
+    @Test
+    public void circuitBreakerEndsTimedOutTrials() throws Exception {
+        PusherCircuitBreaker breaker = new PusherCircuitBreaker(1, 50, TimeUnit.MILLISECONDS);
+        pusher.setCircuitBreaker(breaker);
+        pusher.setRequestTimeout(100, TimeUnit.MILLISECONDS);
+        simulator.setLatency(500, 500, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 2; i++) {
+            try {
+                pusher.getChannel("private-floor-42").publish("table-updated", Json.createObjectBuilder().build());
+                fail();
+            } catch (ProcessingException e) {
+                assertEquals(PusherCircuitBreaker.State.OPEN, breaker.getState());
+            }
+            // the next request is the half-open trial
+            Thread.sleep(60);
+        }
+        simulator.setLatency(0, 0, TimeUnit.MILLISECONDS);
+        pusher.getChannel("private-floor-42").publish("table-updated", Json.createObjectBuilder().build());
+        assertEquals(PusherCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void load() {
+        simulator.setLatency(1, 5, TimeUnit.MILLISECONDS);
+        pusher.setMaxInFlight(64, PusherBackpressure.BLOCK);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        try (PusherBatchPublisher batch = new PusherBatchPublisher(pusher)) {
+            for (int i = 0; i < 2000; i++) {
+                futures.add(pusher.getChannel("private-floor-" + (i % 20)).publishAsync("table-updated", Json.createObjectBuilder().add("i", i).build()));
+                futures.add(batch.publish("private-floor-" + (i % 20), "table-updated", Json.createObjectBuilder().add("i", i).build()));
+            }
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+
+        assertEquals(4000, simulator.getPublishedCount());
+        assertEquals(200, simulator.getEvents("private-floor-7").size());
+        assertTrue(simulator.getPublishedPerSecond() > 0);
+    }
+
+}
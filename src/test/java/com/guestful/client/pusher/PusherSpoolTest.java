@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.Json;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class PusherSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PusherSimulator simulator;
+    private Pusher pusher;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new PusherSimulator();
+        pusher = new Pusher(simulator.getUrl());
+    }
+
+    @After
+    public void tearDown() {
+        pusher.close();
+        simulator.close();
+    }
+
+    @Test
+    public void replaysTheBacklogAfterARestart() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        try (PusherSpool spool = new PusherSpool(directory, 4096, 2, 1000)) {
+            assertTrue(spool.append("events", event("first")));
+            assertTrue(spool.append("events", event("second")));
+        }
+        try (PusherSpool spool = new PusherSpool(directory, 4096, 2, 1000)) {
+            assertEquals(2, spool.getBacklog());
+            pusher.setSpool(spool);
+            awaitEmpty(spool);
+            assertEquals(2, spool.getDrained());
+            assertEquals(0, spool.getBacklogBytes());
+            assertEquals(2, simulator.getEvents("floor-1").size());
+        }
+    }
+
+    @Test
+    public void countsTheCorruptedRecordsOutOfTheBacklog() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        try (PusherSpool spool = new PusherSpool(directory, 4096, 2, 1000)) {
+            assertTrue(spool.append("events", event("first")));
+            assertTrue(spool.append("events", event("second")));
+        }
+        // flip the last byte of the body of the first record
+        try (FileChannel channel = FileChannel.open(directory.resolve("spool-0.log"), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            channel.read(length, 0);
+            ByteBuffer b = ByteBuffer.allocate(1);
+            long position = length.getInt(0) - 1;
+            channel.read(b, position);
+            b.put(0, (byte) (b.get(0) ^ 0xFF)).rewind();
+            channel.write(b, position);
+        }
+        try (PusherSpool spool = new PusherSpool(directory, 4096, 2, 1000)) {
+            assertEquals(2, spool.getBacklog());
+            pusher.setSpool(spool);
+            awaitEmpty(spool);
+            // the rest of the segment is skipped with the corrupted record
+            assertEquals(0, spool.getBacklogBytes());
+            assertEquals(2, spool.getDropped());
+            assertEquals(0, spool.getDrained());
+            assertEquals(0, simulator.getPublishedCount());
+        }
+    }
+
+    @Test
+    public void skipsARecordWithAnInvalidLength() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        int second;
+        try (PusherSpool spool = new PusherSpool(directory, 4096, 2, 1000)) {
+            assertTrue(spool.append("events", event("first")));
+            second = (int) spool.getBacklogBytes();
+            assertTrue(spool.append("events", event("second")));
+        }
+        // a path longer than the second record
+        try (FileChannel channel = FileChannel.open(directory.resolve("spool-0.log"), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer pathLength = ByteBuffer.allocate(2).putShort(0, Short.MAX_VALUE);
+            channel.write(pathLength, second + 8);
+        }
+        try (PusherSpool spool = new PusherSpool(directory, 4096, 2, 1000)) {
+            assertEquals(2, spool.getBacklog());
+            pusher.setSpool(spool);
+            awaitEmpty(spool);
+            assertEquals(0, spool.getBacklogBytes());
+            assertEquals(1, spool.getDrained());
+            assertEquals(1, spool.getDropped());
+            assertEquals(1, simulator.getPublishedCount());
+        }
+    }
+
+    @Test
+    public void reusesASingleSegmentOnceReplayed() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        try (PusherSpool spool = new PusherSpool(directory, 1024, 1, 1000)) {
+            int count = 0;
+            while (spool.append("events", event("event-" + count))) {
+                count++;
+            }
+            assertEquals(count, spool.getBacklog());
+            assertEquals(1, spool.getDropped());
+            pusher.setSpool(spool);
+            awaitEmpty(spool);
+            assertEquals(count, spool.getDrained());
+
+            assertTrue(spool.append("events", event("again")));
+            awaitEmpty(spool);
+            assertEquals(count + 1, spool.getDrained());
+            assertEquals(1, spool.getSegmentCount());
+            assertEquals(count + 1, simulator.getPublishedCount());
+        }
+    }
+
+    private static RequestBody event(String name) {
+        return RequestBody.of(Json.createObjectBuilder()
+            .add("name", name)
+            .add("channels", Json.createArrayBuilder().add("floor-1"))
+            .add("data", "{}")
+            .build());
+    }
+
+    private static void awaitEmpty(PusherSpool spool) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (spool.getBacklog() > 0 && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+        assertEquals(0, spool.getBacklog());
+    }
+}
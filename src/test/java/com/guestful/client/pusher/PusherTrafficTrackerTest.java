@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.json.Json;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class PusherTrafficTrackerTest {
+
+    @Test
+    public void findsTheHeaviestChannelsAmongManyLightOnes() {
+        PusherTrafficTracker tracker = new PusherTrafficTracker(3, 1, TimeUnit.MINUTES);
+        for (int i = 0; i < 6000; i++) {
+            tracker.onPublish("private-restaurant-" + i, "table-updated", 10);
+            if (i % 2 == 0) {
+                tracker.onPublish("private-floor-1", "table-updated", 10);
+            }
+            if (i % 4 == 0) {
+                tracker.onPublish("private-floor-2", "floor-updated", 1000);
+            }
+            if (i % 6 == 0) {
+                tracker.onPublish("private-floor-3", "table-updated", 10);
+            }
+        }
+        assertTop(tracker.getTopChannelsByMessages(), new String[]{"private-floor-1", "private-floor-2", "private-floor-3"}, new long[]{3000, 1500, 1000});
+        assertTop(tracker.getTopChannelsByBytes(), new String[]{"private-floor-2", "private-floor-1"}, new long[]{1500000, 30000});
+        List<PusherTrafficTracker.HeavyHitter> events = tracker.getTopEventsByMessages();
+        assertEquals(2, events.size());
+        assertEquals("table-updated", events.get(0).getName());
+        assertEquals(10000, events.get(0).getValue());
+        assertEquals("floor-updated", tracker.getTopEventsByBytes().get(0).getName());
+    }
+
+    @Test
+    public void countsConcurrentPublications() throws Exception {
+        final PusherTrafficTracker tracker = new PusherTrafficTracker(4, 1, TimeUnit.MINUTES);
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(threads.submit(() -> {
+                    for (int i = 0; i < 10000; i++) {
+                        tracker.onPublish("private-floor-" + (i % 4), "table-updated", 1);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            threads.shutdown();
+        }
+        List<PusherTrafficTracker.HeavyHitter> top = tracker.getTopChannelsByMessages();
+        assertEquals(4, top.size());
+        for (PusherTrafficTracker.HeavyHitter hitter : top) {
+            assertEquals(hitter.getName(), 10000, hitter.getValue());
+        }
+    }
+
+    @Test
+    public void forgetsThePublicationsOutsideTheWindow() throws Exception {
+        PusherTrafficTracker tracker = new PusherTrafficTracker(3, 600, TimeUnit.MILLISECONDS);
+        tracker.onPublish("private-floor-1", "table-updated", 10);
+        assertEquals(1, tracker.getTopChannelsByMessages().size());
+        Thread.sleep(700);
+        assertTrue(tracker.getTopChannelsByMessages().isEmpty());
+        tracker.onPublish("private-floor-2", "table-updated", 10);
+        tracker.reset();
+        assertTrue(tracker.getTopChannelsByMessages().isEmpty());
+    }
+
+    @Test
+    public void tracksPublicationsOfAPusher() throws Exception {
+        PusherSimulator simulator = new PusherSimulator();
+        Pusher pusher = new Pusher(simulator.getUrl());
+        try {
+            PusherTrafficTracker tracker = new PusherTrafficTracker(2, 1, TimeUnit.MINUTES);
+            pusher.setMetrics(tracker);
+            pusher.publish(Arrays.asList("private-floor-1", "private-floor-2"), "closing", Json.createObjectBuilder().add("table", "12").build());
+            pusher.getChannel("private-floor-1").publish("closing", Json.createObjectBuilder().build());
+            assertEquals("private-floor-1", tracker.getTopChannelsByMessages().get(0).getName());
+            assertEquals(2, tracker.getTopChannelsByMessages().get(0).getValue());
+            assertEquals(3, tracker.getTopEventsByMessages().get(0).getValue());
+            assertEquals("[{\"name\":\"closing\",\"value\":3}]", tracker.toJson().getJsonObject("events").getJsonArray("messages").toString());
+        } finally {
+            pusher.close();
+            simulator.close();
+        }
+    }
+
+    @Test
+    public void sketchRowsHashIndependently() {
+        // "Aa" and "BB" have the same String.hashCode()
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        PusherTrafficTracker.CountMinSketch sketch = new PusherTrafficTracker.CountMinSketch(256);
+        sketch.add(PusherTrafficTracker.CountMinSketch.indexes("Aa", 255), 100);
+        assertEquals(100, sketch.estimate(PusherTrafficTracker.CountMinSketch.indexes("Aa", 255)));
+        assertEquals(0, sketch.estimate(PusherTrafficTracker.CountMinSketch.indexes("BB", 255)));
+    }
+
+    private static void assertTop(List<PusherTrafficTracker.HeavyHitter> top, String[] names, long[] values) {
+        assertEquals(top.toString(), 3, top.size());
+        for (int i = 0; i < names.length; i++) {
+            assertEquals(top.toString(), names[i], top.get(i).getName());
+            // never below the exact volume, and close to it
+            assertTrue(top.toString(), top.get(i).getValue() >= values[i] && top.get(i).getValue() <= values[i] * 1.1);
+        }
+    }
+
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.ws.rs.core.HttpHeaders;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class PusherWebhookTest {
+
+    private static final String KEY = "278d425bdf160c739803";
+    private static final String SECRET = "7ad3773142a6692b25b8";
+
+    private final Pusher pusher = new Pusher("http://" + KEY + ":" + SECRET + "@127.0.0.1:1/apps/42");
+    private final List<PusherWebhookEvent> received = Collections.synchronizedList(new ArrayList<>());
+    private final PusherWebhookListener listener = new PusherWebhookListener() {
+        @Override
+        public void onChannelOccupied(PusherWebhookEvent event) {
+            received.add(event);
+        }
+
+        @Override
+        public void onMemberAdded(PusherWebhookEvent event) {
+            received.add(event);
+        }
+
+        @Override
+        public void onClientEvent(PusherWebhookEvent event) {
+            received.add(event);
+        }
+    };
+
+    @After
+    public void tearDown() {
+        pusher.close();
+    }
+
+    @Test
+    public void processesASignedWebhook() throws Exception {
+        PusherWebhook webhook = new PusherWebhook(pusher);
+        webhook.addListener(listener);
+        byte[] body = ("{\"time_ms\":1327078148132,\"events\":["
+            + "{\"name\":\"channel_occupied\",\"channel\":\"private-floor-1\"},"
+            + "{\"name\":\"member_added\",\"channel\":\"presence-restaurant-1\",\"user_id\":\"mathieu\"},"
+            + "{\"name\":\"client_event\",\"channel\":\"private-floor-1\",\"event\":\"client-typing\",\"data\":\"{}\",\"socket_id\":\"1234.5678\",\"extra\":[1,{\"a\":2}]}"
+            + "]}").getBytes(StandardCharsets.UTF_8);
+
+        assertTrue(webhook.verify(KEY, hmac(body), body));
+        assertEquals(3, webhook.process(KEY, hmac(body), body));
+        assertEquals(3, received.size());
+        assertEquals(PusherWebhookEvent.Type.CHANNEL_OCCUPIED, received.get(0).getType());
+        assertEquals(1327078148132L, received.get(0).getTimeMs());
+        assertEquals("mathieu", received.get(1).getUserId());
+        assertEquals("client-typing", received.get(2).getEvent());
+        assertEquals("1234.5678", received.get(2).getSocketId());
+        assertEquals(200, webhook.handle(headers(KEY, hmac(body).toUpperCase()), body).getStatus());
+    }
+
+    @Test
+    public void rejectsAnInvalidSignature() throws Exception {
+        PusherWebhook webhook = new PusherWebhook(pusher);
+        webhook.addListener(listener);
+        byte[] body = "{\"time_ms\":1,\"events\":[{\"name\":\"channel_occupied\",\"channel\":\"private-floor-1\"}]}".getBytes(StandardCharsets.UTF_8);
+        byte[] tampered = "{\"time_ms\":1,\"events\":[{\"name\":\"channel_occupied\",\"channel\":\"private-floor-2\"}]}".getBytes(StandardCharsets.UTF_8);
+
+        assertFalse(webhook.verify(KEY, hmac(body), tampered));
+        assertFalse(webhook.verify(KEY, null, body));
+        try {
+            webhook.process(KEY, hmac(body), tampered);
+            fail();
+        } catch (SecurityException ignored) {
+        }
+        assertEquals(401, webhook.handle(headers(KEY, hmac(body)), tampered).getStatus());
+        assertEquals(401, webhook.handle(headers(KEY, null), body).getStatus());
+        // signed with the right secret but for another key
+        assertEquals(401, webhook.handle(headers("unknown", hmac(body)), body).getStatus());
+        assertEquals(401, webhook.handle(headers(null, hmac(body)), body).getStatus());
+        assertTrue(received.isEmpty());
+    }
+
+    @Test
+    public void rejectsAMalformedBody() throws Exception {
+        PusherWebhook webhook = new PusherWebhook(pusher);
+        webhook.addListener(listener);
+        for (String body : new String[]{"", "[]", "{\"events\":[", "not json"}) {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            try {
+                webhook.process(KEY, hmac(bytes), bytes);
+                fail(body);
+            } catch (IllegalArgumentException ignored) {
+            }
+            assertEquals(body, 400, webhook.handle(headers(KEY, hmac(bytes)), bytes).getStatus());
+        }
+        assertTrue(received.isEmpty());
+    }
+
+    @Test
+    public void notifiesTheEventsOfAChannelInOrder() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            PusherWebhook webhook = new PusherWebhook(pusher, pool, 4);
+            CountDownLatch done = new CountDownLatch(5 * 200);
+            webhook.addListener(new PusherWebhookListener() {
+                @Override
+                public void onClientEvent(PusherWebhookEvent event) {
+                    received.add(event);
+                    done.countDown();
+                }
+            });
+            JsonArrayBuilder events = Json.createArrayBuilder();
+            for (int i = 0; i < 200; i++) {
+                for (int c = 0; c < 5; c++) {
+                    events.add(Json.createObjectBuilder()
+                        .add("name", "client_event")
+                        .add("channel", "private-floor-" + c)
+                        .add("event", "client-" + i)
+                        .add("data", "{}"));
+                }
+            }
+            byte[] body = Json.createObjectBuilder().add("time_ms", 1).add("events", events).build().toString().getBytes(StandardCharsets.UTF_8);
+            assertEquals(1000, webhook.process(KEY, hmac(body), body));
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+
+            Map<String, Integer> next = new HashMap<>();
+            for (PusherWebhookEvent event : new ArrayList<>(received)) {
+                int expected = next.getOrDefault(event.getChannel(), 0);
+                assertEquals(event.getChannel(), "client-" + expected, event.getEvent());
+                next.put(event.getChannel(), expected + 1);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static HttpHeaders headers(String key, String signature) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put(PusherWebhook.KEY_HEADER, key);
+        headers.put(PusherWebhook.SIGNATURE_HEADER, signature);
+        return (HttpHeaders) Proxy.newProxyInstance(HttpHeaders.class.getClassLoader(), new Class<?>[]{HttpHeaders.class}, (proxy, method, args) -> {
+            if (method.getName().equals("getHeaderString")) {
+                return headers.get((String) args[0]);
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    private static String hmac(byte[] data) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+        StringBuilder sb = new StringBuilder();
+        for (byte b : mac.doFinal(data)) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
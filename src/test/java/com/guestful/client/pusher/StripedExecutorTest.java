@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.client.pusher;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@RunWith(JUnit4.class)
+public class StripedExecutorTest {
+
+    @Test
+    public void keepsTheOrderOfEachKey() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            StripedExecutor executor = new StripedExecutor(pool, 4);
+            List<List<Integer>> runs = new ArrayList<>();
+            for (int k = 0; k < 8; k++) {
+                runs.add(Collections.synchronizedList(new ArrayList<>()));
+            }
+            CountDownLatch done = new CountDownLatch(8 * 500);
+            for (int i = 0; i < 500; i++) {
+                for (int k = 0; k < 8; k++) {
+                    final List<Integer> run = runs.get(k);
+                    final int value = i;
+                    executor.execute("key-" + k, () -> {
+                        run.add(value);
+                        done.countDown();
+                    });
+                }
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            for (List<Integer> run : runs) {
+                for (int i = 0; i < 500; i++) {
+                    assertEquals(i, (int) run.get(i));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void doesNotStrandTheTasksQueuedDuringARejection() throws Exception {
+        CountDownLatch submitting = new CountDownLatch(1);
+        CountDownLatch queued = new CountDownLatch(1);
+        AtomicBoolean reject = new AtomicBoolean(true);
+        StripedExecutor executor = new StripedExecutor(task -> {
+            if (reject.get()) {
+                submitting.countDown();
+                try {
+                    queued.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new RejectedExecutionException("shutdown");
+            }
+            task.run();
+        }, 1);
+        List<String> ran = Collections.synchronizedList(new ArrayList<>());
+
+        CompletableFuture<Void> first = CompletableFuture.runAsync(() -> executor.execute("a", () -> ran.add("first")));
+        assertTrue(submitting.await(5, TimeUnit.SECONDS));
+        // queued while the stripe is being scheduled
+        executor.execute("a", () -> ran.add("second"));
+        queued.countDown();
+        try {
+            first.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        // the stripe is usable again and the discarded task never runs late
+        reject.set(false);
+        executor.execute("a", () -> ran.add("third"));
+        assertEquals(Collections.singletonList("third"), ran);
+    }
+}